@@ -0,0 +1,23 @@
+#!/bin/sh
+# Measures the time from launch to the first 220 greeting, averaged over
+# a number of runs (default: 10). Run from the project root, e.g. after
+# "mvn package" and again after "mvn package -Pcds".
+
+RUNS=${1:-10}
+TOTAL=0
+
+for i in $(seq $RUNS); do
+    START=$(date +%s%N)
+    END=$(./my-ftpd --port=0 --exit-after-startup 2> /dev/null | while read LINE; do
+        case "$LINE" in
+            "Startup check: 220"*) date +%s%N ;;
+        esac
+    done)
+    if [ -z "$END" ]; then
+        echo "No greeting received" >&2
+        exit 1
+    fi
+    TOTAL=$((TOTAL + (END - START) / 1000000))
+done
+
+echo "Average time to greeting: $((TOTAL / RUNS)) ms over $RUNS run(s)"
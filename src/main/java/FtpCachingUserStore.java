@@ -0,0 +1,111 @@
+import java.io.*;
+import java.security.*;
+import java.util.*;
+
+/**
+ * FtpCachingUserStore class.
+ *
+ * Wraps a user store with a bounded LRU cache of recently verified
+ * credentials, so that repeated logins of the same user do not pay for
+ * a slow password hash (or a directory service round trip) each time.
+ * Only a salted SHA-256 digest of each password is kept in memory.
+ *
+ * @author  Mort Yao <mort.yao@gmail.com>
+ *
+ * @see     FtpUserStore
+ */
+public class FtpCachingUserStore implements FtpUserStore {
+    /**
+     * A cached credential.
+     */
+    private static class Credential {
+        final byte[] salt;
+        final byte[] digest;
+        final long expires;
+        
+        Credential(byte[] salt, byte[] digest, long expires) {
+            this.salt = salt;
+            this.digest = digest;
+            this.expires = expires;
+        }
+    }
+    
+    /**
+     * Underlying user store.
+     */
+    private final FtpUserStore store;
+    
+    /**
+     * Time to live of a cached credential in milliseconds.
+     */
+    private final long ttl;
+    
+    /**
+     * Cached credentials by user name, in access order.
+     */
+    private final LinkedHashMap<String, Credential> cache;
+    
+    /**
+     * Random number generator for salts.
+     */
+    private final SecureRandom random = new SecureRandom();
+    
+    /**
+     * FtpCachingUserStore constructor.
+     *
+     * @param  store        underlying user store
+     * @param  capacity     maximum number of cached credentials
+     * @param  ttl          time to live of a cached credential in milliseconds
+     */
+    public FtpCachingUserStore(FtpUserStore store, final int capacity, long ttl) {
+        this.store = store;
+        this.ttl = ttl;
+        this.cache = new LinkedHashMap<String, Credential>(16, 0.75f, true) {
+            protected boolean removeEldestEntry(Map.Entry<String, Credential> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+    
+    public FtpUser lookup(String name) throws IOException {
+        return store.lookup(name);
+    }
+    
+    public boolean bind(String name, String password) throws IOException {
+        Credential credential;
+        synchronized (cache) {
+            credential = cache.get(name);
+        }
+        if (credential != null && credential.expires > System.currentTimeMillis()
+            && MessageDigest.isEqual(credential.digest, digest(credential.salt, password)))
+            return true;
+        
+        // Cache miss, verifies against the underlying store
+        if (!store.bind(name, password))
+            return false;
+        byte[] salt = new byte[16];
+        random.nextBytes(salt);
+        credential = new Credential(salt, digest(salt, password), System.currentTimeMillis() + ttl);
+        synchronized (cache) {
+            cache.put(name, credential);
+        }
+        return true;
+    }
+    
+    /**
+     * Computes the salted digest of a password.
+     *
+     * @param  salt         salt
+     * @param  password     password
+     * @return              digest
+     */
+    private static byte[] digest(byte[] salt, String password) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-256");
+            md.update(salt);
+            return md.digest(password.getBytes("UTF-8"));
+        } catch (NoSuchAlgorithmException | UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
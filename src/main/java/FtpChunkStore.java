@@ -0,0 +1,455 @@
+import java.io.*;
+import java.security.*;
+import java.util.*;
+
+/**
+ * FtpChunkStore class.
+ *
+ * A content-addressed, deduplicating store for uploaded files. Incoming data
+ * is split into variable-size chunks with content-defined chunking (a gear
+ * rolling hash), so that identical content yields identical chunks even when
+ * shifted. Each chunk is stored once under its SHA-256 hash, and the file
+ * itself is replaced by a small manifest listing its chunks:
+ *
+ *     my-ftpd-manifest 1
+ *     SIZE
+ *     HASH LENGTH
+ *     ...
+ *
+ * Reference counts of all chunks are kept in memory, so that lookups never
+ * touch the disk, and persisted in an append-only journal which is
+ * compacted on startup.
+ *
+ * @author  Mort Yao <mort.yao@gmail.com>
+ *
+ * @see     FtpServerConnection
+ */
+public class FtpChunkStore {
+    /**
+     * First line of a manifest.
+     */
+    private static final String MAGIC = "my-ftpd-manifest 1";
+    
+    /**
+     * Chunk size bounds, and the mask giving the average chunk size (8 KiB).
+     */
+    private static final int MIN_CHUNK = 2 * 1024;
+    private static final int MAX_CHUNK = 64 * 1024;
+    private static final long MASK = (1L << 13) - 1;
+    
+    /**
+     * Random values for the gear hash, one per byte value.
+     */
+    private static final long[] GEAR = new long[256];
+    static {
+        Random random = new Random(0x6d792d667470L);
+        for (int i = 0; i < GEAR.length; i++)
+            GEAR[i] = random.nextLong();
+    }
+    
+    /**
+     * Directory of chunks.
+     */
+    private final File chunkDir;
+    
+    /**
+     * Journal of reference count changes.
+     */
+    private final File journalFile;
+    private PrintStream journal;
+    
+    /**
+     * Reference counts of chunks by hash.
+     */
+    private final Map<String, Integer> refCounts = new HashMap<String, Integer>();
+    
+    /**
+     * Locks of files, striped by path, so that replacing or removing a
+     * manifest and releasing its chunks is done by one thread at a time.
+     */
+    private final Object[] fileLocks = new Object[64];
+    
+    /**
+     * FtpChunkStore constructor. Loads and compacts the journal.
+     *
+     * @param  dir          directory of the store
+     * @throws IOException
+     */
+    public FtpChunkStore(File dir) throws IOException {
+        this.chunkDir = new File(dir, "chunks");
+        this.journalFile = new File(dir, "refs.journal");
+        if (!chunkDir.isDirectory() && !chunkDir.mkdirs())
+            throw new IOException("Cannot create " + chunkDir);
+        for (int i = 0; i < fileLocks.length; i++)
+            fileLocks[i] = new Object();
+        
+        // Replays the journal
+        if (journalFile.exists()) {
+            BufferedReader br = new BufferedReader(new FileReader(journalFile));
+            try {
+                String line;
+                while ((line = br.readLine()) != null) {
+                    if (line.length() < 2)
+                        continue;
+                    String hash = line.substring(1).split(" ")[0];
+                    Integer count = refCounts.get(hash);
+                    int n = count == null ? 0 : count;
+                    if (line.charAt(0) == '+')
+                        n++;
+                    else if (line.charAt(0) == '-')
+                        n--;
+                    else if (line.charAt(0) == '=')
+                        n = Integer.parseInt(line.substring(1).split(" ")[1]);
+                    if (n > 0)
+                        refCounts.put(hash, n);
+                    else
+                        refCounts.remove(hash);
+                }
+            } finally {
+                br.close();
+            }
+        }
+        
+        // Compacts the journal into a snapshot of all counts
+        File tmp = new File(dir, "refs.journal.tmp");
+        PrintStream ps = new PrintStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+        for (Map.Entry<String, Integer> entry : refCounts.entrySet())
+            ps.print("=" + entry.getKey() + " " + entry.getValue() + "\n");
+        ps.close();
+        if (ps.checkError() || !tmp.renameTo(journalFile))
+            throw new IOException("Cannot write " + journalFile);
+        journal = new PrintStream(new FileOutputStream(journalFile, true));
+    }
+    
+    /**
+     * Stores data as chunks and writes the manifest to a file. If the file
+     * is already a manifest, the chunks it refers to are released.
+     *
+     * @param  in           data to store
+     * @param  file         file to write the manifest to
+     * @throws IOException
+     */
+    public void store(InputStream in, File file) throws IOException {
+        MessageDigest md;
+        try {
+            md = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        
+        StringBuilder manifest = new StringBuilder();
+        List<String> added = new ArrayList<String>();
+        long size = 0;
+        byte[] chunk = new byte[MAX_CHUNK];
+        byte[] buffer = new byte[8192];
+        int length = 0;
+        long hash = 0;
+        try {
+            int n;
+            while ((n = in.read(buffer)) != -1) {
+                for (int i = 0; i < n; i++) {
+                    chunk[length++] = buffer[i];
+                    hash = (hash << 1) + GEAR[buffer[i] & 0xff];
+                    if ((length >= MIN_CHUNK && (hash & MASK) == 0) || length == MAX_CHUNK) {
+                        added.add(addChunk(md, chunk, length, manifest));
+                        size += length;
+                        length = 0;
+                        hash = 0;
+                    }
+                }
+            }
+            if (length > 0) {
+                added.add(addChunk(md, chunk, length, manifest));
+                size += length;
+            }
+            
+            // Writes the manifest atomically, then releases the old one if any
+            File tmp = File.createTempFile(".my-ftpd-", ".tmp", file.getAbsoluteFile().getParentFile());
+            try {
+                Writer w = new OutputStreamWriter(new FileOutputStream(tmp), "UTF-8");
+                try {
+                    w.write(MAGIC + "\n" + size + "\n" + manifest);
+                } finally {
+                    w.close();
+                }
+                synchronized (fileLocks[getFileLock(file)]) {
+                    List<String> old = isManifest(file) ? readChunks(file) : Collections.<String>emptyList();
+                    if (!tmp.renameTo(file))
+                        throw new IOException("Cannot write " + file);
+                    added = Collections.emptyList();
+                    release(old);
+                }
+            } finally {
+                tmp.delete();
+            }
+        } finally {
+            // Drops the chunks of an incomplete upload
+            release(added);
+        }
+    }
+    
+    /**
+     * Adds a chunk to the store, or a reference to it if it is already stored.
+     *
+     * @param  md           SHA-256 digest
+     * @param  chunk        chunk data
+     * @param  length       chunk length
+     * @param  manifest     manifest to append the chunk to
+     * @return              chunk hash
+     * @throws IOException
+     */
+    private String addChunk(MessageDigest md, byte[] chunk, int length,
+                            StringBuilder manifest) throws IOException {
+        md.update(chunk, 0, length);
+        String hash = FtpPasswordHasher.toHex(md.digest());
+        
+        boolean isStored;
+        synchronized (this) {
+            isStored = refCounts.containsKey(hash);
+            if (isStored)
+                addReference(hash);
+        }
+        if (!isStored) {
+            // Writes the chunk outside the lock, so that uploads of new data
+            // only wait for each other to update the reference counts
+            File file = getChunkFile(hash);
+            file.getParentFile().mkdirs();
+            File tmp = File.createTempFile(hash, ".tmp", file.getParentFile());
+            try {
+                OutputStream out = new FileOutputStream(tmp);
+                try {
+                    out.write(chunk, 0, length);
+                } finally {
+                    out.close();
+                }
+                synchronized (this) {
+                    // Another upload may have stored the same chunk meanwhile
+                    if (!refCounts.containsKey(hash) && !tmp.renameTo(file))
+                        throw new IOException("Cannot write chunk " + hash);
+                    addReference(hash);
+                }
+            } finally {
+                tmp.delete();
+            }
+        }
+        manifest.append(hash).append(' ').append(length).append('\n');
+        return hash;
+    }
+    
+    /**
+     * Adds a reference to a stored chunk. Must be called with the lock held.
+     *
+     * @param  hash         chunk hash
+     */
+    private void addReference(String hash) {
+        Integer count = refCounts.get(hash);
+        refCounts.put(hash, count == null ? 1 : count + 1);
+        journal.print("+" + hash + "\n");
+        journal.flush();
+    }
+    
+    /**
+     * Writes the data of a manifest file.
+     *
+     * @param  file         manifest file
+     * @param  out          where to write the data
+     * @throws IOException
+     */
+    public void retrieve(File file, OutputStream out) throws IOException {
+        byte[] buffer = new byte[8192];
+        for (String hash : readChunks(file)) {
+            InputStream in = new FileInputStream(getChunkFile(hash));
+            try {
+                int n;
+                while ((n = in.read(buffer)) != -1)
+                    out.write(buffer, 0, n);
+            } finally {
+                in.close();
+            }
+        }
+    }
+    
+    /**
+     * Opens the data of a manifest file for reading. Chunks are opened one
+     * at a time as the data is read.
+     *
+     * @param  file         manifest file
+     * @return              data stream
+     * @throws IOException
+     */
+    public InputStream open(File file) throws IOException {
+        final Iterator<String> hashes = readChunks(file).iterator();
+        return new InputStream() {
+            private InputStream chunk = null;
+            
+            public int read() throws IOException {
+                byte[] b = new byte[1];
+                return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+            }
+            
+            public int read(byte[] b, int off, int len) throws IOException {
+                while (true) {
+                    if (chunk == null) {
+                        if (!hashes.hasNext())
+                            return -1;
+                        chunk = new FileInputStream(getChunkFile(hashes.next()));
+                    }
+                    int n = chunk.read(b, off, len);
+                    if (n != -1)
+                        return n;
+                    chunk.close();
+                    chunk = null;
+                }
+            }
+            
+            public void close() throws IOException {
+                if (chunk != null)
+                    chunk.close();
+            }
+        };
+    }
+    
+    /**
+     * Deletes a file, releasing its chunks if it is a manifest.
+     *
+     * @param  file         file to delete
+     * @return              true if the file is deleted
+     * @throws IOException
+     */
+    public boolean delete(File file) throws IOException {
+        synchronized (fileLocks[getFileLock(file)]) {
+            List<String> old = isManifest(file) ? readChunks(file) : Collections.<String>emptyList();
+            if (!file.delete())
+                return false;
+            release(old);
+            return true;
+        }
+    }
+    
+    /**
+     * Renames a file, releasing the chunks of the file it replaces if that
+     * is a manifest.
+     *
+     * @param  from         file to rename
+     * @param  to           new file
+     * @return              true if the file is renamed
+     * @throws IOException
+     */
+    public boolean rename(File from, File to) throws IOException {
+        // Takes both locks in index order, so that two renames cannot deadlock
+        int fromLock = getFileLock(from), toLock = getFileLock(to);
+        synchronized (fileLocks[Math.min(fromLock, toLock)]) {
+            synchronized (fileLocks[Math.max(fromLock, toLock)]) {
+                List<String> old = isManifest(to) ? readChunks(to) : Collections.<String>emptyList();
+                if (!from.renameTo(to))
+                    return false;
+                release(old);
+                return true;
+            }
+        }
+    }
+    
+    /**
+     * Returns the index of the lock of a file.
+     *
+     * @param  file         file
+     * @return              index in fileLocks
+     * @throws IOException
+     */
+    private int getFileLock(File file) throws IOException {
+        return (file.getCanonicalPath().hashCode() & 0x7fffffff) % fileLocks.length;
+    }
+    
+    /**
+     * Releases references to chunks, deleting chunks no longer referenced.
+     *
+     * @param  hashes       chunk hashes
+     */
+    private synchronized void release(List<String> hashes) {
+        for (String hash : hashes) {
+            Integer count = refCounts.get(hash);
+            if (count == null)
+                continue;
+            if (count > 1) {
+                refCounts.put(hash, count - 1);
+            } else {
+                refCounts.remove(hash);
+                getChunkFile(hash).delete();
+            }
+            journal.print("-" + hash + "\n");
+        }
+        journal.flush();
+    }
+    
+    /**
+     * Returns true if a file is a manifest.
+     *
+     * @param  file         file
+     * @return              true if the file is a manifest
+     * @throws IOException
+     */
+    public boolean isManifest(File file) throws IOException {
+        if (!file.isFile() || file.length() < MAGIC.length())
+            return false;
+        InputStream in = new FileInputStream(file);
+        try {
+            byte[] magic = new byte[MAGIC.length()];
+            int n = 0, r;
+            while (n < magic.length && (r = in.read(magic, n, magic.length - n)) != -1)
+                n += r;
+            return n == magic.length && new String(magic, "UTF-8").equals(MAGIC);
+        } finally {
+            in.close();
+        }
+    }
+    
+    /**
+     * Returns the size of the data of a manifest file.
+     *
+     * @param  file         manifest file
+     * @return              data size
+     * @throws IOException
+     */
+    public long getSize(File file) throws IOException {
+        BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+        try {
+            br.readLine();
+            return Long.parseLong(br.readLine().trim());
+        } finally {
+            br.close();
+        }
+    }
+    
+    /**
+     * Reads the chunk hashes of a manifest file.
+     *
+     * @param  file         manifest file
+     * @return              chunk hashes, in order
+     * @throws IOException
+     */
+    private List<String> readChunks(File file) throws IOException {
+        List<String> hashes = new ArrayList<String>();
+        BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+        try {
+            br.readLine();
+            br.readLine();
+            String line;
+            while ((line = br.readLine()) != null)
+                if (!line.isEmpty())
+                    hashes.add(line.split(" ")[0]);
+        } finally {
+            br.close();
+        }
+        return hashes;
+    }
+    
+    /**
+     * Returns the file of a chunk, fanned out by the first two hex digits.
+     *
+     * @param  hash         chunk hash
+     * @return              chunk file
+     */
+    private File getChunkFile(String hash) {
+        return new File(new File(chunkDir, hash.substring(0, 2)), hash);
+    }
+}
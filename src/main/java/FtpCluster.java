@@ -0,0 +1,531 @@
+import java.io.*;
+import java.net.*;
+import java.security.*;
+import java.util.*;
+import javax.crypto.*;
+import javax.crypto.spec.*;
+
+/**
+ * FtpCluster class.
+ *
+ * Membership and file placement of a cluster of servers sharing one
+ * namespace. Each pathname is owned by one live node, chosen by consistent
+ * hashing over a ring of virtual nodes, so that adding or losing a node
+ * only moves the pathnames next to it on the ring.
+ *
+ * Nodes are identified by "HOST:PORT" of their FTP control connection.
+ * Membership is replicated by gossip: every second each node bumps its own
+ * heartbeat and sends its view of all heartbeats over UDP (on the same port
+ * number as its FTP control port) to a few random peers, which keep the
+ * higher heartbeat of each node. A node whose heartbeat has not increased
+ * for a while is considered dead and drops out of the ring. Heartbeats
+ * start from the current time, so that a restarted node is not ignored
+ * until it catches up with the heartbeats of its previous run.
+ *
+ * Files are not moved when the ring changes. A node that joins takes over
+ * pathnames from the nodes after it on the ring, so getOwners() lists the
+ * other live nodes in ring order, for looking up pathnames stored before.
+ *
+ * Which node holds which pathname is replicated too: heartbeats carry the
+ * number of the last change to the index of their node, and a node behind
+ * on it fetches the changes from that node over the same socket (see
+ * FtpClusterIndex).
+ *
+ * Nodes share a secret. Gossip messages carry an HMAC of their content
+ * with it, and messages without a valid HMAC are dropped, so that only
+ * nodes knowing the secret can join the ring. The secret also proves to
+ * a node that a control connection comes from another node (see
+ * FtpClusterClient).
+ *
+ * @author  Mort Yao <mort.yao@gmail.com>
+ *
+ * @see     FtpClusterClient
+ */
+public class FtpCluster {
+    /**
+     * Gossip interval, and the time after which a silent node is considered
+     * dead, in milliseconds.
+     */
+    private static final long GOSSIP_INTERVAL = 1000;
+    private static final long FAIL_TIMEOUT = 5000;
+    
+    /**
+     * Number of peers to gossip with every interval.
+     */
+    private static final int FANOUT = 2;
+    
+    /**
+     * Number of virtual nodes per node on the ring.
+     */
+    private static final int VIRTUAL_NODES = 128;
+    
+    /**
+     * First line of a gossip message.
+     */
+    private static final String MAGIC = "my-ftpd-gossip 3";
+    
+    /**
+     * A node as known by this node.
+     */
+    private static class Member {
+        long heartbeat;
+        long updated;
+        
+        // Epoch and number of the last change of the index of the node, as
+        // of the heartbeat
+        long indexEpoch;
+        long indexSeq;
+        
+        Member(long heartbeat, long updated) {
+            this.heartbeat = heartbeat;
+            this.updated = updated;
+        }
+    }
+    
+    /**
+     * ID of this node.
+     */
+    private final String self;
+    
+    /**
+     * Key for HMACs of messages, derived from the cluster secret.
+     */
+    private final SecretKeySpec key;
+    
+    /**
+     * Seed nodes, which are gossiped with until they are known.
+     */
+    private final List<String> seeds;
+    
+    /**
+     * Known nodes by ID, including this node.
+     */
+    private final Map<String, Member> members = new HashMap<String, Member>();
+    
+    /**
+     * Ring of live nodes, by hash of virtual node. Replaced on membership change.
+     */
+    private volatile TreeMap<Long, String> ring = new TreeMap<Long, String>();
+    
+    /**
+     * Socket for gossip.
+     */
+    private final DatagramSocket socket;
+    
+    /**
+     * Random number generator for choosing peers.
+     */
+    private final Random random = new Random();
+    
+    /**
+     * Index of the pathnames held by each node.
+     */
+    private final FtpClusterIndex index;
+    
+    /**
+     * FtpCluster constructor. Starts gossiping.
+     *
+     * @param  self         ID ("HOST:PORT") of this node
+     * @param  seeds        IDs of seed nodes
+     * @param  secret       secret shared by all nodes
+     * @param  ftpHome      FTP home path, whose files are indexed
+     * @param  chunkStore   dedup store, or null
+     * @throws IOException
+     */
+    public FtpCluster(String self, List<String> seeds, String secret, String ftpHome, FtpChunkStore chunkStore)
+        throws IOException {
+        this.self = self;
+        this.key = new SecretKeySpec(secret.getBytes("UTF-8"), "HmacSHA256");
+        this.seeds = new ArrayList<String>(seeds);
+        this.seeds.remove(self);
+        members.put(self, new Member(System.currentTimeMillis(), System.currentTimeMillis()));
+        rebuildRing();
+        
+        socket = new DatagramSocket(getAddress(self).getPort());
+        index = new FtpClusterIndex(self, new File(ftpHome), chunkStore);
+        
+        Thread receiver = new Thread(new Runnable() {
+            public void run() {
+                receiveLoop();
+            }
+        }, "my-ftpd-gossip-receiver");
+        receiver.setDaemon(true);
+        receiver.start();
+        
+        Thread sender = new Thread(new Runnable() {
+            public void run() {
+                sendLoop();
+            }
+        }, "my-ftpd-gossip-sender");
+        sender.setDaemon(true);
+        sender.start();
+    }
+    
+    /**
+     * Returns the ID of this node.
+     *
+     * @return              node ID
+     */
+    public String getSelf() {
+        return self;
+    }
+    
+    /**
+     * Returns the index of the pathnames held by each node.
+     *
+     * @return              index
+     */
+    public FtpClusterIndex getIndex() {
+        return index;
+    }
+    
+    /**
+     * Returns true if the index of another node is up to date, so that
+     * pathnames can be looked up in it rather than on the node.
+     *
+     * @param  node         node ID
+     * @return              true if the index of the node is up to date
+     */
+    public boolean isIndexSynced(String node) {
+        long epoch, seq;
+        synchronized (this) {
+            Member member = members.get(node);
+            if (member == null)
+                return false;
+            epoch = member.indexEpoch;
+            seq = member.indexSeq;
+        }
+        return index.isSynced(node, epoch, seq);
+    }
+    
+    /**
+     * Fetches the latest changes to the index of another node, after a
+     * change made through it, so that this node sees the change before the
+     * node gossips about it. Waits for one gossip interval at most.
+     *
+     * @param  node         node ID
+     */
+    public void syncIndex(String node) {
+        String request;
+        synchronized (this) {
+            Member member = members.get(node);
+            request = member != null ? index.getSyncRequest(node, member.indexEpoch) : null;
+        }
+        if (request == null)
+            return;
+        send(getAddress(node), request);
+        try {
+            index.awaitSync(node, request, GOSSIP_INTERVAL);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+    
+    /**
+     * Returns the owner node of a pathname.
+     *
+     * @param  pathName     absolute client-side pathname
+     * @return              ID of the owner node
+     */
+    public String getOwner(String pathName) {
+        TreeMap<Long, String> ring = this.ring;
+        Map.Entry<Long, String> entry = ring.ceilingEntry(hash(pathName));
+        if (entry == null)
+            entry = ring.firstEntry();
+        return entry.getValue();
+    }
+    
+    /**
+     * Returns the live nodes in the order they may hold a pathname: its
+     * owner first, then the other nodes in ring order. As a node that joins
+     * takes over pathnames from the nodes after it, the owners before the
+     * last joins come right after the owner.
+     *
+     * @param  pathName     absolute client-side pathname
+     * @return              IDs of live nodes, starting with the owner
+     */
+    public List<String> getOwners(String pathName) {
+        TreeMap<Long, String> ring = this.ring;
+        long hash = hash(pathName);
+        Set<String> owners = new LinkedHashSet<String>(ring.tailMap(hash).values());
+        owners.addAll(ring.headMap(hash).values());
+        return new ArrayList<String>(owners);
+    }
+    
+    /**
+     * Returns the IDs of live nodes.
+     *
+     * @return              node IDs
+     */
+    public Set<String> getLiveNodes() {
+        return new TreeSet<String>(ring.values());
+    }
+    
+    /**
+     * Returns the socket address of a node.
+     *
+     * @param  node         node ID ("HOST:PORT")
+     * @return              socket address of its FTP control connection
+     */
+    public static InetSocketAddress getAddress(String node) {
+        int colon = node.lastIndexOf(':');
+        return new InetSocketAddress(node.substring(0, colon), Integer.parseInt(node.substring(colon + 1)));
+    }
+    
+    /**
+     * Returns the HMAC of a message with the cluster secret.
+     *
+     * @param  message      message
+     * @return              HMAC as a hexadecimal string
+     */
+    public String sign(String message) {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(key);
+            return FtpPasswordHasher.toHex(mac.doFinal(message.getBytes("UTF-8")));
+        } catch (GeneralSecurityException | UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+    
+    /**
+     * Checks the HMAC of a message, in constant time.
+     *
+     * @param  message      message
+     * @param  mac          HMAC as a hexadecimal string
+     * @return              true if the HMAC is valid
+     */
+    public boolean verify(String message, String mac) {
+        try {
+            return MessageDigest.isEqual(sign(message).getBytes("UTF-8"), mac.getBytes("UTF-8"));
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+    
+    /**
+     * Returns true if a string is a valid node ID.
+     *
+     * @param  node         string
+     * @return              true if the string is "HOST:PORT"
+     */
+    private static boolean isNodeId(String node) {
+        int colon = node.lastIndexOf(':');
+        try {
+            int port = colon > 0 ? Integer.parseInt(node.substring(colon + 1)) : 0;
+            return port > 0 && port < 65536;
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+    
+    /**
+     * Signs a message and sends it to a node.
+     *
+     * @param  address      socket address of the node
+     * @param  message      message without its HMAC
+     */
+    private void send(SocketAddress address, String message) {
+        try {
+            byte[] data = (sign(message) + "\n" + message).getBytes("UTF-8");
+            socket.send(new DatagramPacket(data, data.length, address));
+        } catch (IOException e) {
+            // Unreachable peers are detected by missing heartbeats
+        }
+    }
+    
+    /**
+     * Asks another node for its index if this node is behind on it.
+     *
+     * @param  node         node ID
+     */
+    private void requestIndex(String node) {
+        String request;
+        synchronized (this) {
+            Member member = members.get(node);
+            request = member != null ? index.getRequest(node, member.indexEpoch, member.indexSeq) : null;
+        }
+        if (request != null)
+            send(getAddress(node), request);
+    }
+    
+    /**
+     * Sends gossip to random peers every interval.
+     */
+    private void sendLoop() {
+        while (true) {
+            try {
+                Thread.sleep(GOSSIP_INTERVAL);
+            } catch (InterruptedException e) {
+                return;
+            }
+            
+            StringBuilder sb = new StringBuilder(MAGIC + "\n");
+            List<String> peers = new ArrayList<String>();
+            long indexSeq = index.getSeq();
+            synchronized (this) {
+                long now = System.currentTimeMillis();
+                Member me = members.get(self);
+                me.heartbeat++;
+                me.updated = now;
+                me.indexEpoch = index.getEpoch();
+                me.indexSeq = indexSeq;
+                for (Map.Entry<String, Member> entry : members.entrySet()) {
+                    Member member = entry.getValue();
+                    if (now - member.updated < FAIL_TIMEOUT) {
+                        sb.append(entry.getKey()).append(' ').append(member.heartbeat).append(' ')
+                            .append(member.indexEpoch).append(' ').append(member.indexSeq).append('\n');
+                        if (!entry.getKey().equals(self))
+                            peers.add(entry.getKey());
+                    }
+                }
+                for (String seed : seeds)
+                    if (!peers.contains(seed))
+                        peers.add(seed);
+                checkMembership(now);
+            }
+            
+            Collections.shuffle(peers, random);
+            for (String peer : peers.subList(0, Math.min(FANOUT, peers.size())))
+                send(getAddress(peer), sb.toString());
+            
+            // Requests lost on the way are sent again
+            for (String node : getLiveNodes())
+                if (!node.equals(self))
+                    requestIndex(node);
+        }
+    }
+    
+    /**
+     * Receives gossip and merges it into the membership view, and handles
+     * requests and replies for indexes.
+     */
+    private void receiveLoop() {
+        byte[] buffer = new byte[65536];
+        while (true) {
+            DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+            try {
+                socket.receive(packet);
+            } catch (IOException e) {
+                return;
+            }
+            // Drops messages not signed with the cluster secret
+            String message;
+            try {
+                message = new String(packet.getData(), 0, packet.getLength(), "UTF-8");
+            } catch (UnsupportedEncodingException e) {
+                throw new IllegalStateException(e);
+            }
+            int newline = message.indexOf('\n');
+            if (newline < 0 || !verify(message.substring(newline + 1), message.substring(0, newline)))
+                continue;
+            message = message.substring(newline + 1);
+            
+            if (message.startsWith(FtpClusterIndex.REQUEST_MAGIC + "\n")) {
+                String reply = index.getReply(message);
+                if (reply != null)
+                    send(packet.getSocketAddress(), reply);
+                continue;
+            } else if (message.startsWith(FtpClusterIndex.REPLY_MAGIC + "\n")) {
+                String request = index.applyReply(message);
+                if (request != null)
+                    send(packet.getSocketAddress(), request);
+                continue;
+            }
+            
+            String lines[] = message.split("\n");
+            if (lines.length == 0 || !lines[0].equals(MAGIC))
+                continue;
+            List<String> changed = new ArrayList<String>();
+            synchronized (this) {
+                long now = System.currentTimeMillis();
+                for (int i = 1; i < lines.length; i++) {
+                    String fields[] = lines[i].split(" ");
+                    if (fields.length != 4 || fields[0].equals(self) || !isNodeId(fields[0]))
+                        continue;
+                    long heartbeat, indexEpoch, indexSeq;
+                    try {
+                        heartbeat = Long.parseLong(fields[1]);
+                        indexEpoch = Long.parseLong(fields[2]);
+                        indexSeq = Long.parseLong(fields[3]);
+                    } catch (NumberFormatException e) {
+                        continue;
+                    }
+                    Member member = members.get(fields[0]);
+                    if (member == null) {
+                        member = new Member(heartbeat, now);
+                        members.put(fields[0], member);
+                    } else if (heartbeat > member.heartbeat) {
+                        member.heartbeat = heartbeat;
+                        member.updated = now;
+                    } else {
+                        continue;
+                    }
+                    if (indexEpoch != member.indexEpoch || indexSeq != member.indexSeq)
+                        changed.add(fields[0]);
+                    member.indexEpoch = indexEpoch;
+                    member.indexSeq = indexSeq;
+                }
+                checkMembership(now);
+            }
+            
+            // Changes to indexes are fetched right away
+            for (String node : changed)
+                requestIndex(node);
+        }
+    }
+    
+    /**
+     * Rebuilds the ring if the set of live nodes has changed.
+     *
+     * @param  now          current time
+     */
+    private void checkMembership(long now) {
+        Set<String> live = new TreeSet<String>();
+        for (Map.Entry<String, Member> entry : members.entrySet())
+            if (entry.getKey().equals(self) || now - entry.getValue().updated < FAIL_TIMEOUT)
+                live.add(entry.getKey());
+        if (!live.equals(getLiveNodes())) {
+            System.err.println(new Date() + " Cluster members: " + live);
+            rebuildRing(live);
+        }
+    }
+    
+    /**
+     * Rebuilds the ring with this node only.
+     */
+    private void rebuildRing() {
+        rebuildRing(Collections.singleton(self));
+    }
+    
+    /**
+     * Rebuilds the ring with a given set of nodes.
+     *
+     * @param  nodes        node IDs
+     */
+    private void rebuildRing(Set<String> nodes) {
+        TreeMap<Long, String> ring = new TreeMap<Long, String>();
+        for (String node : nodes)
+            for (int i = 0; i < VIRTUAL_NODES; i++)
+                ring.put(hash(node + "#" + i), node);
+        this.ring = ring;
+    }
+    
+    /**
+     * Hashes a key onto the ring.
+     *
+     * @param  key          key
+     * @return              position on the ring
+     */
+    private static long hash(String key) {
+        try {
+            byte[] digest = MessageDigest.getInstance("MD5").digest(key.getBytes("UTF-8"));
+            long h = 0;
+            for (int i = 0; i < 8; i++)
+                h = (h << 8) | (digest[i] & 0xff);
+            return h;
+        } catch (NoSuchAlgorithmException | UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
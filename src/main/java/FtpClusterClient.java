@@ -0,0 +1,273 @@
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.regex.*;
+import javax.net.ssl.*;
+
+/**
+ * FtpClusterClient class.
+ *
+ * A control connection to another node of the cluster, used to proxy
+ * requests for pathnames owned by that node. The connection is marked with
+ * "SITE CLUSTER LOCAL", so that the owner serves the requests from its own
+ * storage instead of forwarding them again. To prove that it comes from a
+ * node, it answers a nonce from the owner with its HMAC under the cluster
+ * secret.
+ *
+ * If TLS is configured, the control and data connections are protected by
+ * TLS, as the user's password is passed on to the owner.
+ *
+ * @author  Mort Yao <mort.yao@gmail.com>
+ *
+ * @see     FtpCluster
+ */
+public class FtpClusterClient implements Closeable {
+    /**
+     * Address of the node.
+     */
+    private final InetSocketAddress address;
+    
+    /**
+     * TLS context to protect connections with, or null for plain text.
+     */
+    private final FtpTls tls;
+    
+    /**
+     * Socket for FTP.
+     */
+    private Socket connection;
+    private BufferedReader in;
+    private PrintStream out;
+    
+    /**
+     * Timeout of connects and reads in milliseconds.
+     */
+    private final int timeout;
+    
+    /**
+     * Time of the last reply.
+     */
+    private long lastReply = System.currentTimeMillis();
+    
+    /**
+     * FtpClusterClient constructor. Connects and logs in.
+     *
+     * @param  node         node ID ("HOST:PORT")
+     * @param  user         user name
+     * @param  password     password
+     * @param  cluster      cluster, to sign the nonce of the node with
+     * @param  tls          TLS context, or null for plain text
+     * @param  timeout      timeout of connects and reads in milliseconds
+     * @throws IOException
+     */
+    public FtpClusterClient(String node, String user, String password, FtpCluster cluster, FtpTls tls,
+                            int timeout) throws IOException {
+        this.address = FtpCluster.getAddress(node);
+        this.tls = tls;
+        this.timeout = timeout;
+        Socket socket = new Socket();
+        socket.connect(address, timeout);
+        socket.setSoTimeout(timeout);
+        open(socket);
+        
+        try {
+            expect(readReply(), "2");
+            if (tls != null) {
+                expect(command("AUTH TLS"), "2");
+                open(tls.wrapClient(socket));
+                expect(command("PBSZ 0"), "2");
+                expect(command("PROT P"), "2");
+            }
+            String reply = command("USER " + (user == null ? "anonymous" : user));
+            if (reply.startsWith("3"))
+                reply = command("PASS " + (password == null ? "" : password));
+            expect(reply, "2");
+            reply = command("SITE CLUSTER NONCE");
+            expect(reply, "2");
+            expect(command("SITE CLUSTER LOCAL " + cluster.sign("local " + reply.substring(4).trim())), "2");
+            expect(command("TYPE I"), "2");
+        } catch (IOException e) {
+            connection.close();
+            throw e;
+        }
+    }
+    
+    /**
+     * Sets up the streams of the control connection.
+     *
+     * @param  connection   socket for FTP
+     * @throws IOException
+     */
+    private void open(Socket connection) throws IOException {
+        this.connection = connection;
+        this.in = new BufferedReader(new InputStreamReader(connection.getInputStream()));
+        this.out = new PrintStream(new BufferedOutputStream(connection.getOutputStream()));
+    }
+    
+    /**
+     * Sends a request and reads the reply.
+     *
+     * @param  request      request string
+     * @return              last line of the reply
+     * @throws IOException
+     */
+    public String command(String request) throws IOException {
+        out.print(request + "\r\n");
+        out.flush();
+        return readReply();
+    }
+    
+    /**
+     * Reads a reply, skipping the leading lines of a multi-line reply.
+     *
+     * @return              last line of the reply
+     * @throws IOException
+     */
+    public String readReply() throws IOException {
+        List<String> lines = readReplyLines();
+        return lines.get(lines.size() - 1);
+    }
+    
+    /**
+     * Reads all lines of a reply.
+     *
+     * @return              lines of the reply
+     * @throws IOException
+     */
+    private List<String> readReplyLines() throws IOException {
+        List<String> lines = new ArrayList<String>();
+        String line = in.readLine();
+        if (line == null)
+            throw new EOFException("Connection closed by " + address);
+        lines.add(line);
+        if (line.matches("^\\d{3}-.*")) {
+            String end = line.substring(0, 3) + " ";
+            while (!line.startsWith(end)) {
+                line = in.readLine();
+                if (line == null)
+                    throw new EOFException("Connection closed by " + address);
+                lines.add(line);
+            }
+        }
+        lastReply = System.currentTimeMillis();
+        return lines;
+    }
+    
+    /**
+     * Returns the MLST facts of a pathname on the node.
+     *
+     * @param  pathName     absolute client-side pathname
+     * @return              facts, or null if the node does not have the pathname
+     * @throws IOException
+     */
+    public String getFacts(String pathName) throws IOException {
+        out.print("MLST " + pathName + "\r\n");
+        out.flush();
+        List<String> lines = readReplyLines();
+        if (!lines.get(0).startsWith("250") || lines.size() < 3)
+            return null;
+        String facts = lines.get(1).trim();
+        int space = facts.indexOf(' ');
+        return space < 0 ? facts : facts.substring(0, space);
+    }
+    
+    /**
+     * Retrieves the lines of a listing, such as MLSD, over a data connection.
+     *
+     * @param  request      request string
+     * @return              lines of the listing, or null if the node refused the request
+     * @throws IOException
+     */
+    public List<String> list(String request) throws IOException {
+        List<String> lines = new ArrayList<String>();
+        Socket dataConnection = openPassive();
+        try {
+            if (!startTransfer(dataConnection, request).startsWith("1"))
+                return null;
+            BufferedReader br = new BufferedReader(new InputStreamReader(dataConnection.getInputStream()));
+            String line;
+            while ((line = br.readLine()) != null)
+                lines.add(line);
+        } finally {
+            dataConnection.close();
+        }
+        return readReply().startsWith("2") ? lines : null;
+    }
+    
+    /**
+     * Returns true if the connection can still be used for requests. The
+     * node may have closed it meanwhile, e.g. on idle timeout, so it is
+     * checked with a NOOP if it has not been used for a while.
+     *
+     * @return              true if the connection is usable
+     */
+    public boolean isUsable() {
+        try {
+            // A pending reply is a 421 sent before closing
+            if (connection.isClosed() || in.ready())
+                return false;
+            return System.currentTimeMillis() - lastReply < 1000 || command("NOOP").startsWith("2");
+        } catch (IOException e) {
+            return false;
+        }
+    }
+    
+    /**
+     * Enters extended passive mode and connects to the data port.
+     *
+     * @return              socket for FTP data
+     * @throws IOException
+     */
+    public Socket openPassive() throws IOException {
+        String reply = command("EPSV");
+        Matcher m = Pattern.compile("\\(\\|\\|\\|(\\d+)\\|\\)").matcher(reply);
+        if (!reply.startsWith("229") || !m.find())
+            throw new IOException("EPSV failed: " + reply);
+        Socket dataConnection = new Socket();
+        dataConnection.connect(new InetSocketAddress(address.getAddress(), Integer.parseInt(m.group(1))), timeout);
+        dataConnection.setSoTimeout(timeout);
+        return tls == null ? dataConnection : tls.wrapClient(dataConnection);
+    }
+    
+    /**
+     * Sends a transfer request over a data connection from openPassive(),
+     * and reads the preliminary reply. If the node accepts the request, the
+     * TLS handshake of the data connection is done before returning, even
+     * if no data is sent.
+     *
+     * @param  dataConnection   socket for FTP data
+     * @param  request          request string
+     * @return                  last line of the reply
+     * @throws IOException
+     */
+    public String startTransfer(Socket dataConnection, String request) throws IOException {
+        String reply = command(request);
+        if (reply.startsWith("1") && dataConnection instanceof SSLSocket)
+            ((SSLSocket) dataConnection).startHandshake();
+        return reply;
+    }
+    
+    /**
+     * Quits and closes the connection.
+     */
+    public void close() {
+        try {
+            out.print("QUIT\r\n");
+            out.flush();
+            connection.close();
+        } catch (IOException e) {
+        }
+    }
+    
+    /**
+     * Throws if a reply is not of an expected class.
+     *
+     * @param  reply        reply line
+     * @param  prefix       expected first digit(s) of the code
+     * @throws IOException
+     */
+    private void expect(String reply, String prefix) throws IOException {
+        if (!reply.startsWith(prefix))
+            throw new IOException("Unexpected reply from " + address + ": " + reply);
+    }
+}
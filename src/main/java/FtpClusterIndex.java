@@ -0,0 +1,637 @@
+import java.io.*;
+import java.nio.file.*;
+import java.nio.file.attribute.*;
+import java.util.*;
+
+/**
+ * FtpClusterIndex class.
+ *
+ * Index of the pathnames held by the nodes of a cluster, so that lookups
+ * and listings of pathnames on other nodes need no request to them. Each
+ * node indexes the files under its FTP home path with their MLST facts,
+ * and numbers the changes to its index. The number of the last change is
+ * gossiped with the heartbeat of the node (see FtpCluster), and a node
+ * behind on the index of another asks it for the changes since the last
+ * one it has, or for its whole index page by page if these changes are no
+ * longer kept. Numbers start over with a new epoch when a node restarts.
+ *
+ * Changes made through the server are indexed as they are made, and the
+ * files are rescanned every interval for changes made outside the server.
+ * Another node learns of a change within a few gossip intervals, or right
+ * away if the change was made through it (see FtpCluster.syncIndex()).
+ *
+ * Keys are pathnames relative to the FTP home path, starting with '/'.
+ * Pathnames containing a newline are not indexed.
+ *
+ * @author  Mort Yao <mort.yao@gmail.com>
+ *
+ * @see     FtpCluster
+ */
+public class FtpClusterIndex {
+    /**
+     * Interval between rescans of the files, in milliseconds.
+     */
+    private static final long RESCAN_INTERVAL = 60 * 60 * 1000;
+    
+    /**
+     * Number of last changes kept for nodes catching up.
+     */
+    private static final int MAX_CHANGES = 100000;
+    
+    /**
+     * Number of characters after which no more entries are added to a
+     * reply, keeping it within one datagram.
+     */
+    private static final int MAX_REPLY = 16000;
+    
+    /**
+     * First lines of index requests and replies.
+     */
+    public static final String REQUEST_MAGIC = "my-ftpd-index-request 1";
+    public static final String REPLY_MAGIC = "my-ftpd-index 1";
+    
+    /**
+     * Facts of a removed pathname in a change.
+     */
+    private static final String REMOVED = "-";
+    
+    /**
+     * The index of another node as known by this node.
+     */
+    private static class Replica {
+        long epoch;
+        long seq;
+        TreeMap<String, String> entries = new TreeMap<String, String>();
+        
+        // Whole index being fetched, if any, with the epoch and last change
+        // number of its first page and its last key fetched so far
+        TreeMap<String, String> fetched;
+        long fetchedEpoch;
+        long fetchedSeq;
+        String fetchedAfter;
+        
+        // ID of the last request, and highest ID of a request answered with
+        // all changes of the node
+        long requested;
+        long synced;
+    }
+    
+    /**
+     * ID of this node.
+     */
+    private final String self;
+    
+    /**
+     * Canonical FTP home path.
+     */
+    private final String rootPath;
+    
+    /**
+     * Dedup store for file sizes, or null.
+     */
+    private final FtpChunkStore chunkStore;
+    
+    /**
+     * Epoch of the change numbers of this node.
+     */
+    private final long epoch = System.currentTimeMillis();
+    
+    /**
+     * Number of the last change to the index of this node.
+     */
+    private long seq;
+    
+    /**
+     * Facts by key of the pathnames on this node.
+     */
+    private final TreeMap<String, String> entries = new TreeMap<String, String>();
+    
+    /**
+     * Keys and facts of the last changes, by change number modulo
+     * MAX_CHANGES.
+     */
+    private final String[] changedKeys = new String[MAX_CHANGES];
+    private final String[] changedFacts = new String[MAX_CHANGES];
+    
+    /**
+     * Keys refreshed during a rescan, which the rescan leaves as they are,
+     * and their parents; null if no rescan is running.
+     */
+    private Set<String> refreshed;
+    private Set<String> refreshedParents;
+    
+    /**
+     * Indexes of the other nodes by node ID.
+     */
+    private final Map<String, Replica> replicas = new HashMap<String, Replica>();
+    
+    /**
+     * FtpClusterIndex constructor. Starts scanning the files.
+     *
+     * @param  self         ID of this node
+     * @param  root         FTP home path
+     * @param  chunkStore   dedup store, or null
+     * @throws IOException
+     */
+    public FtpClusterIndex(String self, File root, FtpChunkStore chunkStore) throws IOException {
+        this.self = self;
+        this.rootPath = root.getCanonicalPath();
+        this.chunkStore = chunkStore;
+        
+        Thread thread = new Thread(new Runnable() {
+            public void run() {
+                rescanLoop();
+            }
+        }, "my-ftpd-index");
+        thread.setDaemon(true);
+        thread.start();
+    }
+    
+    /**
+     * Returns the epoch of the change numbers of this node.
+     *
+     * @return              epoch
+     */
+    public long getEpoch() {
+        return epoch;
+    }
+    
+    /**
+     * Returns the number of the last change to the index of this node.
+     *
+     * @return              change number
+     */
+    public synchronized long getSeq() {
+        return seq;
+    }
+    
+    /**
+     * Returns the key of a file.
+     *
+     * @param  file         file with a canonical pathname
+     * @return              key, or null if the file is not in FTP home path
+     */
+    public String getKey(File file) {
+        String path = file.getPath();
+        if (path.equals(rootPath))
+            return "/";
+        else if (path.startsWith(rootPath + File.separator))
+            return path.substring(rootPath.length()).replace(File.separatorChar, '/');
+        else
+            return null;
+    }
+    
+    /**
+     * Indexes a pathname again after a change to it, with everything under
+     * it and its parents.
+     *
+     * @param  file         file with a canonical pathname
+     */
+    public void refresh(File file) {
+        String key = getKey(file);
+        if (key == null || key.equals("/"))
+            return;
+        Map<String, String> found = scan(file.toPath(), key);
+        synchronized (this) {
+            for (String old : new ArrayList<String>(getSubtree(entries, key).keySet()))
+                if (!found.containsKey(old))
+                    change(old, null);
+            if (!found.containsKey(key))
+                change(key, null);
+            for (Map.Entry<String, String> entry : found.entrySet())
+                change(entry.getKey(), entry.getValue());
+            
+            // Parents may have been created, and the modification time of
+            // the direct parent has changed
+            File parent = file.getParentFile();
+            String parentKey = getKey(parent);
+            for (boolean isDirect = true; parentKey != null && !parentKey.equals("/"); isDirect = false) {
+                if (!isDirect && entries.containsKey(parentKey))
+                    break;
+                change(parentKey, getFacts(parent.toPath()));
+                if (refreshedParents != null)
+                    refreshedParents.add(parentKey);
+                parent = parent.getParentFile();
+                parentKey = getKey(parent);
+            }
+            if (refreshed != null)
+                refreshed.add(key);
+        }
+    }
+    
+    /**
+     * Returns the facts of a pathname on another node.
+     *
+     * @param  node         node ID
+     * @param  key          key of the pathname
+     * @return              facts, or null if the node does not have it
+     */
+    public synchronized String getFacts(String node, String key) {
+        Replica replica = replicas.get(node);
+        return replica != null ? replica.entries.get(key) : null;
+    }
+    
+    /**
+     * Returns the entries of a directory on another node.
+     *
+     * @param  node         node ID
+     * @param  key          key of the directory
+     * @return              facts by entry name
+     */
+    public synchronized SortedMap<String, String> getChildren(String node, String key) {
+        SortedMap<String, String> children = new TreeMap<String, String>();
+        Replica replica = replicas.get(node);
+        if (replica == null)
+            return children;
+        String prefix = key.equals("/") ? "/" : key + "/";
+        String next = replica.entries.ceilingKey(prefix);
+        while (next != null && next.startsWith(prefix)) {
+            String name = next.substring(prefix.length());
+            int slash = name.indexOf('/');
+            if (slash < 0) {
+                children.put(name, replica.entries.get(next));
+                next = replica.entries.higherKey(next);
+            } else {
+                // Skips what is under the entry; '0' comes right after '/'
+                next = replica.entries.ceilingKey(prefix + name.substring(0, slash) + "0");
+            }
+        }
+        return children;
+    }
+    
+    /**
+     * Returns true if the index of another node is up to date with the
+     * change number it last gossiped.
+     *
+     * @param  node         node ID
+     * @param  epoch        gossiped epoch of the node
+     * @param  seq          gossiped change number of the node
+     * @return              true if the index is up to date
+     */
+    public synchronized boolean isSynced(String node, long epoch, long seq) {
+        Replica replica = replicas.get(node);
+        return replica != null && replica.fetched == null && replica.epoch == epoch && replica.seq >= seq;
+    }
+    
+    /**
+     * Returns a request for the index of another node if this node is
+     * behind on it.
+     *
+     * @param  node         node ID
+     * @param  epoch        gossiped epoch of the node
+     * @param  seq          gossiped change number of the node
+     * @return              request, or null if the index is up to date
+     */
+    public synchronized String getRequest(String node, long epoch, long seq) {
+        if (isSynced(node, epoch, seq))
+            return null;
+        return formatRequest(getReplica(node));
+    }
+    
+    /**
+     * Returns a request for the latest changes of another node, to be
+     * waited for with awaitSync(), after a change made through the node.
+     *
+     * @param  node         node ID
+     * @param  epoch        gossiped epoch of the node
+     * @return              request, or null if the index of the node is not
+     *                      known yet, in which case it is not used anyway
+     */
+    public synchronized String getSyncRequest(String node, long epoch) {
+        Replica replica = replicas.get(node);
+        if (replica == null || replica.fetched != null || replica.epoch != epoch)
+            return null;
+        return formatRequest(replica);
+    }
+    
+    /**
+     * Waits until a request from getSyncRequest() is answered.
+     *
+     * @param  node         node ID
+     * @param  request      request
+     * @param  timeout      time to wait at most, in milliseconds
+     * @throws InterruptedException
+     */
+    public synchronized void awaitSync(String node, String request, long timeout) throws InterruptedException {
+        String[] fields = request.trim().split(" ");
+        long id = Long.parseLong(fields[fields.length - 1]);
+        long deadline = System.currentTimeMillis() + timeout;
+        Replica replica = getReplica(node);
+        for (long now = System.currentTimeMillis(); replica.synced < id && now < deadline;
+             now = System.currentTimeMillis())
+            wait(deadline - now);
+    }
+    
+    /**
+     * Answers a request for the index of this node.
+     *
+     * @param  request      request without its HMAC
+     * @return              reply, or null if the request is invalid
+     */
+    public synchronized String getReply(String request) {
+        String[] lines = request.split("\n", -1);
+        if (lines.length < 2)
+            return null;
+        String[] fields = lines[1].split(" ");
+        try {
+            if (fields[0].equals("changes") && fields.length == 4) {
+                long from = Long.parseLong(fields[2]);
+                if (Long.parseLong(fields[1]) == epoch && from >= Math.max(0, seq - MAX_CHANGES) && from <= seq)
+                    return formatChanges(from, Long.parseLong(fields[3]));
+                return formatEntries("", Long.parseLong(fields[3]));
+            } else if (fields[0].equals("entries") && fields.length == 3 && lines.length > 2) {
+                String after = Long.parseLong(fields[1]) == epoch ? lines[2] : "";
+                return formatEntries(after, Long.parseLong(fields[2]));
+            }
+        } catch (NumberFormatException e) {
+            // Falls through
+        }
+        return null;
+    }
+    
+    /**
+     * Applies a reply from another node to its index.
+     *
+     * @param  reply        reply without its HMAC
+     * @return              request for the rest of the index of the node, or
+     *                      null if there is no more to fetch
+     */
+    public synchronized String applyReply(String reply) {
+        String[] lines = reply.split("\n", -1);
+        if (lines.length < 2)
+            return null;
+        String[] fields = lines[1].split(" ");
+        if (fields.length < 6 || fields[0].equals(self))
+            return null;
+        Replica replica = getReplica(fields[0]);
+        try {
+            long epoch = Long.parseLong(fields[2]);
+            if (fields[1].equals("changes") && fields.length == 7) {
+                long from = Long.parseLong(fields[3]), to = Long.parseLong(fields[4]);
+                // Only replies following on the changes known so far are used
+                if (replica.fetched != null || replica.epoch != epoch || from > replica.seq || to < replica.seq
+                    || lines.length < 2 + to - from)
+                    return null;
+                for (long seq = replica.seq + 1; seq <= to; seq++) {
+                    String line = lines[(int) (2 + seq - from - 1)];
+                    int space = line.indexOf(' ');
+                    if (space < 0)
+                        return null;
+                    if (line.substring(0, space).equals(REMOVED))
+                        replica.entries.remove(line.substring(space + 1));
+                    else
+                        replica.entries.put(line.substring(space + 1), line.substring(0, space));
+                    replica.seq = seq;
+                }
+                if (!fields[5].equals("1"))
+                    return formatRequest(replica);
+                replica.synced = Math.max(replica.synced, Long.parseLong(fields[6]));
+                notifyAll();
+                return null;
+            } else if (fields[1].equals("entries") && fields.length == 6 && lines.length > 2) {
+                if (lines[2].isEmpty()) {
+                    replica.fetched = new TreeMap<String, String>();
+                    replica.fetchedEpoch = epoch;
+                    replica.fetchedSeq = Long.parseLong(fields[3]);
+                    replica.fetchedAfter = "";
+                } else if (replica.fetched == null || replica.fetchedEpoch != epoch
+                           || !replica.fetchedAfter.equals(lines[2])) {
+                    return null;
+                }
+                for (int i = 3; i < lines.length; i++) {
+                    int space = lines[i].indexOf(' ');
+                    if (space < 0)
+                        continue;
+                    replica.fetched.put(lines[i].substring(space + 1), lines[i].substring(0, space));
+                    replica.fetchedAfter = lines[i].substring(space + 1);
+                }
+                // Changes made while the pages were fetched are fetched next
+                if (fields[4].equals("1")) {
+                    replica.entries = replica.fetched;
+                    replica.epoch = epoch;
+                    replica.seq = replica.fetchedSeq;
+                    replica.fetched = null;
+                }
+                return formatRequest(replica);
+            }
+        } catch (NumberFormatException e) {
+            // Falls through
+        }
+        return null;
+    }
+    
+    /**
+     * Returns the index of another node, creating an empty one if unknown.
+     *
+     * @param  node         node ID
+     * @return              index of the node
+     */
+    private Replica getReplica(String node) {
+        Replica replica = replicas.get(node);
+        if (replica == null) {
+            replica = new Replica();
+            replicas.put(node, replica);
+        }
+        return replica;
+    }
+    
+    /**
+     * Returns the next request for the index of another node.
+     *
+     * @param  replica      index of the node
+     * @return              request
+     */
+    private String formatRequest(Replica replica) {
+        replica.requested++;
+        if (replica.fetched != null)
+            return REQUEST_MAGIC + "\nentries " + replica.fetchedEpoch + " " + replica.requested + "\n"
+                + replica.fetchedAfter;
+        return REQUEST_MAGIC + "\nchanges " + replica.epoch + " " + replica.seq + " " + replica.requested;
+    }
+    
+    /**
+     * Returns a reply with the changes after a given one, as many as fit.
+     *
+     * @param  from         number of the last change known to the requester
+     * @param  id           request ID
+     * @return              reply
+     */
+    private String formatChanges(long from, long id) {
+        StringBuilder sb = new StringBuilder();
+        long to = from;
+        while (to < seq && sb.length() < MAX_REPLY) {
+            to++;
+            int i = (int) (to % MAX_CHANGES);
+            sb.append(changedFacts[i]).append(' ').append(changedKeys[i]).append('\n');
+        }
+        return REPLY_MAGIC + "\n" + self + " changes " + epoch + " " + from + " " + to + " "
+            + (to == seq ? 1 : 0) + " " + id + "\n" + sb;
+    }
+    
+    /**
+     * Returns a reply with the entries after a given key, as many as fit.
+     *
+     * @param  after        last key known to the requester, or "" to start
+     * @param  id           request ID
+     * @return              reply
+     */
+    private String formatEntries(String after, long id) {
+        StringBuilder sb = new StringBuilder();
+        boolean isComplete = true;
+        for (Map.Entry<String, String> entry : entries.tailMap(after, false).entrySet()) {
+            if (sb.length() >= MAX_REPLY) {
+                isComplete = false;
+                break;
+            }
+            sb.append(entry.getValue()).append(' ').append(entry.getKey()).append('\n');
+        }
+        return REPLY_MAGIC + "\n" + self + " entries " + epoch + " " + seq + " " + (isComplete ? 1 : 0) + " " + id
+            + "\n" + after + "\n" + sb;
+    }
+    
+    /**
+     * Records a change to the index of this node, if anything changes.
+     *
+     * @param  key          key of the pathname
+     * @param  facts        new facts, or null if the pathname was removed
+     */
+    private void change(String key, String facts) {
+        String old = facts == null ? entries.remove(key) : entries.put(key, facts);
+        if (facts == null ? old == null : facts.equals(old))
+            return;
+        seq++;
+        changedKeys[(int) (seq % MAX_CHANGES)] = key;
+        changedFacts[(int) (seq % MAX_CHANGES)] = facts == null ? REMOVED : facts;
+    }
+    
+    /**
+     * Returns the entries under a key.
+     *
+     * @param  entries      facts by key
+     * @param  key          key of a directory
+     * @return              view of the entries under the key
+     */
+    private static SortedMap<String, String> getSubtree(TreeMap<String, String> entries, String key) {
+        // Keys under the key start with key + "/", and '0' comes right after '/'
+        return entries.subMap(key + "/", key + "0");
+    }
+    
+    /**
+     * Returns the facts of a pathname, not following symbolic links.
+     *
+     * @param  path         pathname
+     * @return              facts, or null if the pathname does not exist
+     */
+    private String getFacts(Path path) {
+        try {
+            BasicFileAttributes attrs = Files.readAttributes(path, BasicFileAttributes.class,
+                                                             LinkOption.NOFOLLOW_LINKS);
+            return FtpTreeWalker.formatFacts(path, attrs, chunkStore);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+    
+    /**
+     * Returns the facts of a pathname and of everything under it. Entries
+     * that cannot be read are left out.
+     *
+     * @param  start        pathname
+     * @param  key          key of the pathname
+     * @return              facts by key, empty if the pathname does not exist
+     */
+    private Map<String, String> scan(final Path start, final String key) {
+        final Map<String, String> found = new HashMap<String, String>();
+        final String prefix = key.equals("/") ? "" : key;
+        try {
+            Files.walkFileTree(start, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+                    if (!dir.equals(start) && dir.getFileName().toString().indexOf('\n') >= 0)
+                        return FileVisitResult.SKIP_SUBTREE;
+                    found.put(getKey(dir), FtpTreeWalker.formatFacts(dir, attrs, chunkStore));
+                    return FileVisitResult.CONTINUE;
+                }
+                
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                    if (file.getFileName().toString().indexOf('\n') < 0)
+                        found.put(getKey(file), FtpTreeWalker.formatFacts(file, attrs, chunkStore));
+                    return FileVisitResult.CONTINUE;
+                }
+                
+                @Override
+                public FileVisitResult visitFileFailed(Path file, IOException e) {
+                    return FileVisitResult.CONTINUE;
+                }
+                
+                @Override
+                public FileVisitResult postVisitDirectory(Path dir, IOException e) {
+                    return FileVisitResult.CONTINUE;
+                }
+                
+                private String getKey(Path path) {
+                    if (path.equals(start))
+                        return key;
+                    return prefix + "/" + start.relativize(path).toString().replace(File.separatorChar, '/');
+                }
+            });
+        } catch (IOException e) {
+            // Not thrown by the visitor
+        }
+        return found;
+    }
+    
+    /**
+     * Scans all files and records what changed since they were last
+     * indexed. Pathnames refreshed during the scan are left as they are,
+     * as the scan may have seen them before.
+     */
+    private void rescan() {
+        synchronized (this) {
+            refreshed = new HashSet<String>();
+            refreshedParents = new HashSet<String>();
+        }
+        Map<String, String> found = scan(Paths.get(rootPath), "/");
+        found.remove("/");
+        synchronized (this) {
+            Set<String> keys = new HashSet<String>(entries.keySet());
+            keys.addAll(found.keySet());
+            for (String key : keys)
+                if (!isRefreshed(key))
+                    change(key, found.get(key));
+            refreshed = null;
+            refreshedParents = null;
+        }
+    }
+    
+    /**
+     * Returns true if a key was refreshed during the running rescan.
+     *
+     * @param  key          key
+     * @return              true if the key, a parent of it, or a key under
+     *                      it was refreshed
+     */
+    private boolean isRefreshed(String key) {
+        if (refreshedParents.contains(key))
+            return true;
+        for (String k = key; !k.isEmpty(); k = k.substring(0, k.lastIndexOf('/')))
+            if (refreshed.contains(k))
+                return true;
+        return false;
+    }
+    
+    /**
+     * Rescans the files every interval.
+     */
+    private void rescanLoop() {
+        while (true) {
+            rescan();
+            try {
+                Thread.sleep(RESCAN_INTERVAL);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+}
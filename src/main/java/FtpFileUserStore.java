@@ -0,0 +1,78 @@
+import java.io.*;
+import java.util.*;
+
+/**
+ * FtpFileUserStore class.
+ *
+ * A user store backed by a text file. Each line is of the form
+ *
+ *     NAME:PASSWORD-HASH:HOME:PERMS[,PATH=PERMS...]
+ *
+ * where PASSWORD-HASH is produced by FtpPasswordHasher, or "*" to accept
+ * any password (e.g. for anonymous). PERMS are 'r' (read), 'w' (write) and
+ * 'a' (admin, e.g. SITE RELOAD). Blank lines and lines starting with '#'
+ * are ignored.
+ *
+ * @author  Mort Yao <mort.yao@gmail.com>
+ *
+ * @see     FtpUserStore
+ * @see     FtpPasswordHasher
+ */
+public class FtpFileUserStore implements FtpUserStore {
+    /**
+     * Users by name.
+     */
+    private final Map<String, FtpUser> users = new HashMap<String, FtpUser>();
+    
+    /**
+     * Password hashes by user name.
+     */
+    private final Map<String, String> hashes = new HashMap<String, String>();
+    
+    /**
+     * FtpFileUserStore constructor.
+     *
+     * @param  file         users file
+     * @throws IOException
+     */
+    public FtpFileUserStore(File file) throws IOException {
+        BufferedReader br = new BufferedReader(new FileReader(file));
+        try {
+            String line;
+            int lineNumber = 0;
+            while ((line = br.readLine()) != null) {
+                lineNumber++;
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#"))
+                    continue;
+                String fields[] = line.split(":", 4);
+                if (fields.length != 4)
+                    throw new IOException(file + ":" + lineNumber + ": malformed user entry");
+                if (!fields[1].equals("*") && !FtpPasswordHasher.isValid(fields[1]))
+                    throw new IOException(file + ":" + lineNumber + ": malformed password hash");
+                String home = new File(fields[2]).getCanonicalPath();
+                try {
+                    users.put(fields[0], FtpUser.parse(fields[0], home, fields[3]));
+                } catch (IllegalArgumentException e) {
+                    throw new IOException(file + ":" + lineNumber + ": " + e.getMessage());
+                }
+                hashes.put(fields[0], fields[1]);
+            }
+        } finally {
+            br.close();
+        }
+    }
+    
+    public FtpUser lookup(String name) {
+        return users.get(name);
+    }
+    
+    public boolean bind(String name, String password) {
+        String hash = hashes.get(name);
+        if (hash == null)
+            return false;
+        if (hash.equals("*"))
+            return true;
+        return FtpPasswordHasher.verify(password, hash);
+    }
+}
@@ -0,0 +1,122 @@
+import java.security.*;
+import java.security.spec.*;
+import javax.crypto.*;
+import javax.crypto.spec.*;
+
+/**
+ * FtpPasswordHasher class.
+ *
+ * Hashes passwords with PBKDF2 in the form "pbkdf2$ITERATIONS$SALT$HASH",
+ * where SALT and HASH are hex-encoded.
+ *
+ * @author  Mort Yao <mort.yao@gmail.com>
+ *
+ * @see     FtpFileUserStore
+ */
+public class FtpPasswordHasher {
+    /**
+     * PBKDF2 algorithm.
+     */
+    private static final String ALGORITHM = "PBKDF2WithHmacSHA1";
+    
+    /**
+     * Default number of iterations.
+     */
+    private static final int ITERATIONS = 20000;
+    
+    /**
+     * Lengths of salt and hash in bytes.
+     */
+    private static final int SALT_LENGTH = 16;
+    private static final int HASH_LENGTH = 20;
+    
+    /**
+     * Random number generator for salts.
+     */
+    private static final SecureRandom random = new SecureRandom();
+    
+    /**
+     * Hashes a password with a random salt.
+     *
+     * @param  password     password
+     * @return              password hash
+     */
+    public static String hash(String password) {
+        byte[] salt = new byte[SALT_LENGTH];
+        random.nextBytes(salt);
+        return "pbkdf2$" + ITERATIONS + "$" + toHex(salt) + "$"
+            + toHex(pbkdf2(password, salt, ITERATIONS, HASH_LENGTH));
+    }
+    
+    /**
+     * Verifies a password against a password hash.
+     *
+     * @param  password     password
+     * @param  hash         password hash
+     * @return              true if the password matches
+     */
+    public static boolean verify(String password, String hash) {
+        if (!isValid(hash))
+            return false;
+        String parts[] = hash.split("\\$");
+        int iterations = Integer.parseInt(parts[1]);
+        byte[] salt = fromHex(parts[2]);
+        byte[] expected = fromHex(parts[3]);
+        byte[] actual = pbkdf2(password, salt, iterations, expected.length);
+        return MessageDigest.isEqual(expected, actual);
+    }
+    
+    /**
+     * Returns true if a password hash is well-formed, i.e. can be verified.
+     *
+     * @param  hash         password hash
+     * @return              true if the hash is well-formed
+     */
+    public static boolean isValid(String hash) {
+        return hash.matches("pbkdf2\\$[1-9][0-9]{0,8}\\$([0-9a-fA-F]{2})+\\$([0-9a-fA-F]{2})+");
+    }
+    
+    /**
+     * Computes PBKDF2 of a password.
+     *
+     * @param  password     password
+     * @param  salt         salt
+     * @param  iterations   number of iterations
+     * @param  length       length of the derived key in bytes
+     * @return              derived key
+     */
+    private static byte[] pbkdf2(String password, byte[] salt, int iterations, int length) {
+        try {
+            PBEKeySpec spec = new PBEKeySpec(password.toCharArray(), salt, iterations, length * 8);
+            return SecretKeyFactory.getInstance(ALGORITHM).generateSecret(spec).getEncoded();
+        } catch (NoSuchAlgorithmException | InvalidKeySpecException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+    
+    /**
+     * Encodes bytes as a hex string.
+     *
+     * @param  bytes        bytes
+     * @return              hex string
+     */
+    static String toHex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder();
+        for (byte b : bytes)
+            sb.append(String.format("%02x", b & 0xff));
+        return sb.toString();
+    }
+    
+    /**
+     * Decodes a hex string.
+     *
+     * @param  hex          hex string
+     * @return              bytes
+     */
+    static byte[] fromHex(String hex) {
+        byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; i++)
+            bytes[i] = (byte) Integer.parseInt(hex.substring(i * 2, i * 2 + 2), 16);
+        return bytes;
+    }
+}
@@ -0,0 +1,528 @@
+import java.io.*;
+import java.nio.file.*;
+import java.nio.file.attribute.*;
+import java.util.*;
+
+/**
+ * FtpQuotaLedger class.
+ *
+ * Keeps track of the usage (bytes and number of files) of directories with
+ * quotas, so that quotas are checked without walking the directory tree.
+ * Quotas are read from a file with one quota per line:
+ *
+ *     user NAME MAX_BYTES MAX_FILES
+ *     dir PATH MAX_BYTES MAX_FILES
+ *
+ * A user quota applies to the home dir of the user, a relative PATH is
+ * relative to FTP home path, and "-" means no limit.
+ *
+ * Usage counters are updated in memory on every change, and persisted in
+ * an append-only journal next to the quota file, which is compacted into a
+ * snapshot periodically. A background scan reconciles the counters with
+ * the disk, e.g. after a crash or changes made outside of the server.
+ *
+ * @author  Mort Yao <mort.yao@gmail.com>
+ *
+ * @see     FtpServerConnection
+ */
+public class FtpQuotaLedger {
+    /**
+     * Interval between snapshots, and between reconciling scans (ms).
+     */
+    private static final long SNAPSHOT_INTERVAL = 60 * 1000;
+    private static final long RECONCILE_INTERVAL = 60 * 60 * 1000;
+    
+    /**
+     * Thrown when a change would exceed a quota.
+     */
+    public static class QuotaExceededException extends IOException {
+        private static final long serialVersionUID = 1L;
+        
+        public QuotaExceededException() {
+            super("Quota exceeded");
+        }
+    }
+    
+    /**
+     * Quota and usage of a directory.
+     */
+    private static class Quota {
+        final String path;
+        long maxBytes;
+        long maxFiles;
+        
+        /**
+         * Usage by completed changes, and space reserved by changes in
+         * progress (e.g. uploads).
+         */
+        long bytes = 0;
+        long files = 0;
+        long reservedBytes = 0;
+        long reservedFiles = 0;
+        
+        /**
+         * Number of changes in progress, and number of completed changes.
+         * A scan is only trusted if neither changed while it ran.
+         */
+        int active = 0;
+        long version = 0;
+        
+        Quota(String path, long maxBytes, long maxFiles) {
+            this.path = path;
+            this.maxBytes = maxBytes;
+            this.maxFiles = maxFiles;
+        }
+        
+        synchronized boolean reserve(long bytes, long files) {
+            if (bytes > 0 && maxBytes >= 0 && this.bytes + reservedBytes + bytes > maxBytes)
+                return false;
+            if (files > 0 && maxFiles >= 0 && this.files + reservedFiles + files > maxFiles)
+                return false;
+            reservedBytes += bytes;
+            reservedFiles += files;
+            return true;
+        }
+        
+        synchronized void unreserve(long bytes, long files) {
+            reservedBytes -= bytes;
+            reservedFiles -= files;
+        }
+    }
+    
+    /**
+     * A change in progress to a file or directory, charged to every quota
+     * above it.
+     */
+    public class Change {
+        private final File file;
+        private final List<Quota> quotas;
+        private final long[] reservedBytes;
+        private final long[] reservedFiles;
+        private final long[] before;
+        private boolean isDone = false;
+        
+        private Change(File file, List<Quota> quotas) {
+            this.file = file;
+            this.quotas = quotas;
+            this.reservedBytes = new long[quotas.size()];
+            this.reservedFiles = new long[quotas.size()];
+            this.before = quotas.isEmpty() ? new long[2] : measure(file);
+        }
+        
+        /**
+         * Returns the usage of the file or directory before the change.
+         *
+         * @return              bytes and number of files
+         */
+        public long[] getUsageBefore() {
+            return before;
+        }
+        
+        /**
+         * Reserves space for the change in all its quotas.
+         *
+         * @param  bytes        bytes to reserve
+         * @param  files        number of files to reserve
+         * @return              true if reserved, false if a quota would be exceeded
+         */
+        public boolean reserve(long bytes, long files) {
+            return reserve(bytes, files, null);
+        }
+        
+        /**
+         * Reserves space for the change in its quotas, except those shared
+         * with another change (e.g. the source of a rename).
+         *
+         * @param  bytes        bytes to reserve
+         * @param  files        number of files to reserve
+         * @param  except       other change, or null
+         * @return              true if reserved, false if a quota would be exceeded
+         */
+        public boolean reserve(long bytes, long files, Change except) {
+            for (int i = 0; i < quotas.size(); i++) {
+                Quota quota = quotas.get(i);
+                if (except != null && except.quotas.contains(quota))
+                    continue;
+                if (!quota.reserve(bytes, files)) {
+                    for (int j = 0; j < i; j++) {
+                        if (except != null && except.quotas.contains(quotas.get(j)))
+                            continue;
+                        quotas.get(j).unreserve(bytes, files);
+                        reservedBytes[j] -= bytes;
+                        reservedFiles[j] -= files;
+                    }
+                    return false;
+                }
+                reservedBytes[i] += bytes;
+                reservedFiles[i] += files;
+            }
+            return true;
+        }
+        
+        /**
+         * Wraps a data stream so that the bytes read are reserved as they
+         * arrive, failing as soon as a quota would be exceeded.
+         *
+         * @param  in           data stream
+         * @param  credit       bytes that may be read without reserving,
+         *                      e.g. the size of a file being overwritten
+         * @return              wrapped stream
+         */
+        public InputStream limit(InputStream in, final long credit) {
+            return new FilterInputStream(in) {
+                private long remaining = credit;
+                
+                public int read(byte[] b, int off, int len) throws IOException {
+                    int n = super.read(b, off, len);
+                    if (n > 0) {
+                        long charge = Math.max(0, n - remaining);
+                        remaining = Math.max(0, remaining - n);
+                        if (charge > 0 && !reserve(charge, 0))
+                            throw new QuotaExceededException();
+                    }
+                    return n;
+                }
+            };
+        }
+        
+        /**
+         * Completes the change: measures the file or directory again, and
+         * charges the difference to all quotas in place of the reservations.
+         */
+        public void commit() {
+            if (isDone)
+                return;
+            isDone = true;
+            if (quotas.isEmpty())
+                return;
+            long[] after = measure(file);
+            long bytes = after[0] - before[0];
+            long files = after[1] - before[1];
+            synchronized (FtpQuotaLedger.this) {
+                for (int i = 0; i < quotas.size(); i++) {
+                    Quota quota = quotas.get(i);
+                    synchronized (quota) {
+                        quota.bytes += bytes;
+                        quota.files += files;
+                        quota.reservedBytes -= reservedBytes[i];
+                        quota.reservedFiles -= reservedFiles[i];
+                        quota.active--;
+                        quota.version++;
+                    }
+                    if (bytes != 0 || files != 0)
+                        journal.print(bytes + " " + files + " " + quota.path + "\n");
+                }
+                journal.flush();
+            }
+        }
+    }
+    
+    /**
+     * Quota file, and journal of usage changes.
+     */
+    private final File quotaFile;
+    private final File journalFile;
+    private PrintStream journal = null;
+    
+    /**
+     * Deduplicating store, whose manifests count as the size of their data.
+     */
+    private final FtpChunkStore chunkStore;
+    
+    /**
+     * Quotas by canonical path of directory. Replaced as a whole on reload.
+     */
+    private volatile Map<String, Quota> quotas = new HashMap<String, Quota>();
+    
+    /**
+     * FtpQuotaLedger constructor. Loads the quotas and the usage in the
+     * journal; directories not in the journal are scanned.
+     *
+     * @param  quotaFile    quota file
+     * @param  userStore    user store for user quotas, or null
+     * @param  ftpHome      FTP home path
+     * @param  chunkStore   deduplicating store, or null
+     * @throws IOException
+     */
+    public FtpQuotaLedger(File quotaFile, FtpUserStore userStore, String ftpHome,
+                          FtpChunkStore chunkStore) throws IOException {
+        this.quotaFile = quotaFile;
+        this.journalFile = new File(quotaFile.getPath() + ".journal");
+        this.chunkStore = chunkStore;
+        
+        // Replays the journal
+        Map<String, long[]> usage = new HashMap<String, long[]>();
+        if (journalFile.exists()) {
+            BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(journalFile), "UTF-8"));
+            try {
+                String line;
+                while ((line = br.readLine()) != null) {
+                    String[] fields = line.split(" ", 3);
+                    if (fields.length < 3)
+                        continue;
+                    boolean isSnapshot = fields[0].startsWith("=");
+                    long bytes = Long.parseLong(isSnapshot ? fields[0].substring(1) : fields[0]);
+                    long files = Long.parseLong(fields[1]);
+                    long[] counts = usage.get(fields[2]);
+                    if (counts == null || isSnapshot)
+                        usage.put(fields[2], new long[] { bytes, files });
+                    else {
+                        counts[0] += bytes;
+                        counts[1] += files;
+                    }
+                }
+            } finally {
+                br.close();
+            }
+        }
+        
+        quotas = loadQuotas(userStore, ftpHome, usage);
+        snapshot();
+        
+        Thread thread = new Thread(new Runnable() {
+            public void run() {
+                maintenanceLoop();
+            }
+        }, "my-ftpd-quota");
+        thread.setDaemon(true);
+        thread.start();
+    }
+    
+    /**
+     * Reloads the quotas from the quota file. Usage of directories already
+     * known is kept; new directories are scanned.
+     *
+     * @param  userStore    user store for user quotas, or null
+     * @param  ftpHome      FTP home path
+     * @throws IOException  if the quota file is invalid, in which case the
+     *                      current quotas are kept
+     */
+    public synchronized void reload(FtpUserStore userStore, String ftpHome) throws IOException {
+        Map<String, long[]> usage = new HashMap<String, long[]>();
+        for (Quota quota : quotas.values())
+            synchronized (quota) {
+                usage.put(quota.path, new long[] { quota.bytes, quota.files });
+            }
+        Map<String, Quota> reloaded = loadQuotas(userStore, ftpHome, usage);
+        
+        // Keeps the same objects for known directories, as changes in progress refer to them
+        for (Map.Entry<String, Quota> entry : reloaded.entrySet()) {
+            Quota quota = quotas.get(entry.getKey());
+            if (quota != null) {
+                synchronized (quota) {
+                    quota.maxBytes = entry.getValue().maxBytes;
+                    quota.maxFiles = entry.getValue().maxFiles;
+                }
+                entry.setValue(quota);
+            }
+        }
+        quotas = reloaded;
+        snapshot();
+    }
+    
+    /**
+     * Reads the quota file.
+     *
+     * @param  userStore    user store for user quotas, or null
+     * @param  ftpHome      FTP home path
+     * @param  usage        known usage by directory
+     * @return              quotas by canonical path of directory
+     * @throws IOException
+     */
+    private Map<String, Quota> loadQuotas(FtpUserStore userStore, String ftpHome,
+                                          Map<String, long[]> usage) throws IOException {
+        Map<String, Quota> quotas = new HashMap<String, Quota>();
+        BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(quotaFile), "UTF-8"));
+        try {
+            String line;
+            while ((line = br.readLine()) != null) {
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#"))
+                    continue;
+                String[] fields = line.split("\\s+");
+                if (fields.length != 4)
+                    throw new IOException("Invalid quota: " + line);
+                
+                String path;
+                if (fields[0].equals("user")) {
+                    FtpUser user = userStore == null ? null : userStore.lookup(fields[1]);
+                    if (user == null)
+                        throw new IOException("Unknown user in quota: " + line);
+                    path = user.getHome();
+                } else if (fields[0].equals("dir")) {
+                    File dir = new File(fields[1]);
+                    path = (dir.isAbsolute() ? dir : new File(ftpHome, fields[1])).getCanonicalPath();
+                } else {
+                    throw new IOException("Invalid quota: " + line);
+                }
+                long maxBytes, maxFiles;
+                try {
+                    maxBytes = fields[2].equals("-") ? -1 : Long.parseLong(fields[2]);
+                    maxFiles = fields[3].equals("-") ? -1 : Long.parseLong(fields[3]);
+                } catch (NumberFormatException e) {
+                    throw new IOException("Invalid quota: " + line);
+                }
+                
+                // Several quotas on the same directory (e.g. users sharing a home) add up to the strictest
+                Quota quota = quotas.get(path);
+                if (quota == null) {
+                    quotas.put(path, new Quota(path, maxBytes, maxFiles));
+                } else {
+                    quota.maxBytes = min(quota.maxBytes, maxBytes);
+                    quota.maxFiles = min(quota.maxFiles, maxFiles);
+                }
+            }
+        } finally {
+            br.close();
+        }
+        
+        for (Quota quota : quotas.values()) {
+            long[] counts = usage.get(quota.path);
+            if (counts == null)
+                counts = measure(new File(quota.path));
+            quota.bytes = counts[0];
+            quota.files = counts[1];
+        }
+        return quotas;
+    }
+    
+    /**
+     * Returns the stricter of two limits.
+     *
+     * @param  a            limit, or a negative number for no limit
+     * @param  b            limit, or a negative number for no limit
+     * @return              stricter limit
+     */
+    private static long min(long a, long b) {
+        return a < 0 ? b : b < 0 ? a : Math.min(a, b);
+    }
+    
+    /**
+     * Starts a change to a file or directory.
+     *
+     * Every change must be completed by Change.commit(), even if it fails.
+     *
+     * @param  file         file or directory, with canonical path
+     * @return              change
+     */
+    public Change begin(File file) {
+        List<Quota> found = new ArrayList<Quota>(2);
+        Map<String, Quota> quotas = this.quotas;
+        if (!quotas.isEmpty()) {
+            for (File dir = file.getParentFile(); dir != null; dir = dir.getParentFile()) {
+                Quota quota = quotas.get(dir.getPath());
+                if (quota != null) {
+                    synchronized (quota) {
+                        quota.active++;
+                    }
+                    found.add(quota);
+                }
+            }
+        }
+        return new Change(file, found);
+    }
+    
+    /**
+     * Measures the usage of a file or directory. Errors are ignored, as the
+     * usage will be reconciled by a later scan.
+     *
+     * @param  file         file or directory
+     * @return              bytes and number of files
+     */
+    private long[] measure(File file) {
+        final long[] usage = new long[2];
+        try {
+            Files.walkFileTree(file.toPath(), new SimpleFileVisitor<Path>() {
+                public FileVisitResult visitFile(Path path, BasicFileAttributes attrs) throws IOException {
+                    if (attrs.isRegularFile()) {
+                        File file = path.toFile();
+                        usage[0] += chunkStore != null && chunkStore.isManifest(file)
+                            ? chunkStore.getSize(file) : attrs.size();
+                        usage[1]++;
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+                
+                public FileVisitResult visitFileFailed(Path path, IOException e) {
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } catch (IOException e) {
+        }
+        return usage;
+    }
+    
+    /**
+     * Compacts the journal into a snapshot of the usage of all directories.
+     *
+     * @throws IOException
+     */
+    private synchronized void snapshot() throws IOException {
+        File tmp = new File(journalFile.getPath() + ".tmp");
+        PrintStream ps = new PrintStream(new BufferedOutputStream(new FileOutputStream(tmp)), false, "UTF-8");
+        for (Quota quota : quotas.values())
+            synchronized (quota) {
+                ps.print("=" + quota.bytes + " " + quota.files + " " + quota.path + "\n");
+            }
+        ps.close();
+        if (ps.checkError() || !tmp.renameTo(journalFile))
+            throw new IOException("Cannot write " + journalFile);
+        if (journal != null)
+            journal.close();
+        journal = new PrintStream(new FileOutputStream(journalFile, true), false, "UTF-8");
+    }
+    
+    /**
+     * Scans the directories with quotas, and corrects their usage. A scan
+     * of a directory is discarded if it changed meanwhile.
+     */
+    private void reconcile() {
+        for (Quota quota : quotas.values()) {
+            long version;
+            synchronized (quota) {
+                if (quota.active > 0)
+                    continue;
+                version = quota.version;
+            }
+            long[] usage = measure(new File(quota.path));
+            synchronized (this) {
+                synchronized (quota) {
+                    if (quota.active > 0 || quota.version != version
+                        || (quota.bytes == usage[0] && quota.files == usage[1]))
+                        continue;
+                    System.err.println(new Date() + " Quota usage of " + quota.path + " corrected from "
+                                       + quota.bytes + " bytes, " + quota.files + " files to "
+                                       + usage[0] + " bytes, " + usage[1] + " files");
+                    quota.bytes = usage[0];
+                    quota.files = usage[1];
+                }
+                journal.print("=" + usage[0] + " " + usage[1] + " " + quota.path + "\n");
+                journal.flush();
+            }
+        }
+    }
+    
+    /**
+     * Takes snapshots and reconciles usage every interval.
+     */
+    private void maintenanceLoop() {
+        long lastReconcile = System.currentTimeMillis();
+        while (true) {
+            try {
+                Thread.sleep(SNAPSHOT_INTERVAL);
+            } catch (InterruptedException e) {
+                return;
+            }
+            
+            if (System.currentTimeMillis() - lastReconcile >= RECONCILE_INTERVAL) {
+                reconcile();
+                lastReconcile = System.currentTimeMillis();
+            }
+            try {
+                snapshot();
+            } catch (IOException e) {
+                System.err.println("Quota error: " + e.getMessage());
+            }
+        }
+    }
+}
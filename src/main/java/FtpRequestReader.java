@@ -0,0 +1,113 @@
+import java.io.*;
+
+/**
+ * FtpRequestReader class.
+ *
+ * Reads requests from an FTP control connection line by line. Unlike a
+ * BufferedReader, it can tell whether another complete request has already
+ * been received, so that replies to pipelined requests may be coalesced.
+ *
+ * @author  Mort Yao <mort.yao@gmail.com>
+ *
+ * @see     FtpServerConnection
+ */
+public class FtpRequestReader {
+    /**
+     * Underlying input stream.
+     */
+    private InputStream in;
+    
+    /**
+     * Buffer of received bytes. Unread bytes are in [pos, limit).
+     */
+    private final byte[] buffer = new byte[8192];
+    private int pos = 0;
+    private int limit = 0;
+    
+    /**
+     * FtpRequestReader constructor.
+     *
+     * @param  in           input stream of the control connection
+     */
+    public FtpRequestReader(InputStream in) {
+        this.in = in;
+    }
+    
+    /**
+     * Switches to a new input stream (e.g. after a TLS upgrade). Anything
+     * buffered from the old stream is discarded, so that requests sent in
+     * plaintext cannot be injected into the upgraded session.
+     *
+     * @param  in           new input stream
+     */
+    public void setInputStream(InputStream in) {
+        this.in = in;
+        pos = limit = 0;
+    }
+    
+    /**
+     * Reads a request line, blocking until a complete line is received.
+     * The line terminator (LF or CRLF) is not included.
+     *
+     * @return              request line, or null if the end of stream is reached
+     * @throws IOException
+     */
+    public String readLine() throws IOException {
+        ByteArrayOutputStream partial = null;
+        while (true) {
+            for (int i = pos; i < limit; i++) {
+                if (buffer[i] == '\n') {
+                    int start = pos;
+                    pos = i + 1;
+                    if (partial == null)
+                        return decode(buffer, start, i - start);
+                    partial.write(buffer, start, i - start);
+                    return decode(partial.toByteArray(), 0, partial.size());
+                }
+            }
+            
+            // No line terminator buffered yet, keeps the partial line
+            if (limit > pos) {
+                if (partial == null)
+                    partial = new ByteArrayOutputStream();
+                partial.write(buffer, pos, limit - pos);
+            }
+            pos = limit = 0;
+            
+            int n = in.read(buffer, 0, buffer.length);
+            if (n == -1) {
+                if (partial == null || partial.size() == 0)
+                    return null;
+                return decode(partial.toByteArray(), 0, partial.size());
+            }
+            limit = n;
+        }
+    }
+    
+    /**
+     * Returns true if a complete request line has already been received and
+     * can be read without blocking.
+     *
+     * @return              true if a complete request line is buffered
+     */
+    public boolean hasPendingRequest() {
+        for (int i = pos; i < limit; i++)
+            if (buffer[i] == '\n')
+                return true;
+        return false;
+    }
+    
+    /**
+     * Decodes a line, stripping the trailing CR if any.
+     *
+     * @param  bytes        bytes of the line
+     * @param  off          offset
+     * @param  len          length
+     * @return              decoded line
+     */
+    private static String decode(byte[] bytes, int off, int len) {
+        if (len > 0 && bytes[off + len - 1] == '\r')
+            len--;
+        return new String(bytes, off, len);
+    }
+}
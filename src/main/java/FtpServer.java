@@ -1,6 +1,10 @@
 import java.io.*;
+import java.lang.management.*;
+import java.lang.reflect.*;
 import java.net.*;
+import java.nio.channels.*;
 import java.util.*;
+import java.util.concurrent.*;
 import org.apache.commons.cli.*;
 
 /**
@@ -17,20 +21,238 @@ public class FtpServer {
     private static int controlPort = 21;
     
     /**
-     * FTP home path on the server (default: current dir).
+     * Address to listen on (default: wildcard, both IPv4 and IPv6).
      */
-    private static String ftpHome = System.getProperty("user.dir");
+    private static InetAddress listenAddress = null;
+    
+    /**
+     * Number of acceptor threads (default: 1).
+     */
+    private static int acceptors = 1;
+    
+    /**
+     * Backlog of pending connections of each listener.
+     */
+    private static final int BACKLOG = 1024;
+    
+    /**
+     * Timeout of accepting a connection, in milliseconds, after which an
+     * acceptor thread checks whether the server is draining.
+     */
+    private static final int ACCEPT_TIMEOUT = 500;
+    
+    /**
+     * Time to wait for transfers to finish when draining, in milliseconds
+     * (default: 10 min).
+     */
+    private static long drainTimeout = 600 * 1000;
+    
+    /**
+     * Start up, check the greeting, then exit (default: false). Used for the
+     * training run that produces the class-data sharing archive.
+     */
+    private static boolean exitAfterStartup = false;
+    
+    /**
+     * Command-line arguments, kept for reloading.
+     */
+    private static String[] commandLineArgs;
+    
+    /**
+     * Settings for new connections. Replaced on reload.
+     */
+    private static volatile FtpServerConfig config;
+    
+    /**
+     * Open connections.
+     */
+    private static final Set<FtpServerConnection> connections =
+        Collections.newSetFromMap(new ConcurrentHashMap<FtpServerConnection, Boolean>());
+    
+    /**
+     * Listeners on the control port.
+     */
+    private static final List<ServerSocket> sockets = new ArrayList<ServerSocket>();
+    
+    /**
+     * Is the listener inherited from the parent process, i.e. also open in
+     * another process.
+     */
+    private static boolean isInherited = false;
+    
+    /**
+     * Threads accepting connections.
+     */
+    private static final List<Thread> acceptorThreads = new ArrayList<Thread>();
+    
+    /**
+     * Is the server draining, i.e. no longer accepting connections.
+     */
+    private static volatile boolean isDraining = false;
+    
+    /**
+     * Capacity and time to live (in milliseconds) of the credential cache.
+     */
+    private static final int CREDENTIAL_CACHE_CAPACITY = 10000;
+    private static final long CREDENTIAL_CACHE_TTL = 10 * 60 * 1000;
+    
+    /**
+     * Timer for timeouts of all connections: 100 ms ticks, 512 slots.
+     */
+    private static final FtpTimerWheel timer = new FtpTimerWheel(100, 512);
     
     /**
      * Main method.
      */
     public static void main(String[] args) {
+        Options options = buildOptions();
+        commandLineArgs = args;
+        try {
+            CommandLine line = parseCommandLine(options, args);
+            
+            if (line.hasOption("help")) {
+                HelpFormatter formatter = new HelpFormatter();
+                formatter.printHelp("my-ftpd [OPTION...]", options);
+                System.exit(-1);
+            }
+            
+            if (line.hasOption("port"))
+                controlPort = Integer.parseInt(line.getOptionValue("port"));
+            
+            if (line.hasOption("hash-password")) {
+                String password = new BufferedReader(new InputStreamReader(System.in)).readLine();
+                System.out.println(FtpPasswordHasher.hash(password == null ? "" : password));
+                System.exit(0);
+            }
+            
+            if (line.hasOption("listen-address"))
+                listenAddress = InetAddress.getByName(line.getOptionValue("listen-address"));
+            if (line.hasOption("acceptors"))
+                acceptors = Math.max(1, Integer.parseInt(line.getOptionValue("acceptors")));
+            if (line.hasOption("drain-timeout"))
+                drainTimeout = Long.parseLong(line.getOptionValue("drain-timeout")) * 1000;
+            if (line.hasOption("exit-after-startup"))
+                exitAfterStartup = true;
+            
+            config = loadConfig(line, null);
+        } catch (ParseException e) {
+            System.err.println("Command-line error: " + e.getMessage());
+            System.exit(-1);
+        } catch (IOException e) {
+            System.err.println("Configuration error: " + e.getMessage());
+            System.exit(-1);
+        }
+        
+        try {
+            // A listener passed in by the parent process (e.g. systemd socket
+            // activation or inetd "wait" mode) is used instead of binding anew
+            Channel inherited = System.inheritedChannel();
+            isInherited = inherited instanceof ServerSocketChannel;
+            if (isInherited)
+                sockets.add(((ServerSocketChannel) inherited).socket());
+            else
+                sockets.add(openListener());
+        } catch (IOException e) {
+            System.err.println("Socket error: " + e.getMessage());
+            System.exit(-1);
+        }
+        controlPort = sockets.get(0).getLocalPort(); // in case of port 0
+        for (int i = 1; i < acceptors && getReusePortOption() != null; i++) {
+            try {
+                sockets.add(openListener());
+            } catch (IOException e) {
+                break; // SO_REUSEPORT not supported by the OS
+            }
+        }
+        System.out.println("my-ftpd running on port " + controlPort);
+        
+        installSignalHandlers();
+        
+        // Each acceptor thread has its own listener if SO_REUSEPORT is
+        // supported, so that the kernel balances connections between them
+        for (int i = 0; i < acceptors; i++) {
+            final ServerSocket socket = sockets.get(i % sockets.size());
+            try {
+                socket.setSoTimeout(ACCEPT_TIMEOUT);
+            } catch (SocketException e) {
+                System.err.println("Socket error: " + e.getMessage());
+            }
+            Thread thread = new Thread(new Runnable() {
+                public void run() {
+                    acceptLoop(socket);
+                }
+            }, "my-ftpd-acceptor-" + i);
+            acceptorThreads.add(thread);
+            thread.start();
+        }
+        
+        // Creates the TLS context in the background, so that key store errors
+        // are reported at once but the server need not wait for it to start
+        final FtpTls tls = config.getTls();
+        if (tls != null) {
+            Thread thread = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        tls.load();
+                    } catch (IOException e) {
+                        System.err.println("TLS error: " + e.getMessage());
+                    }
+                }
+            }, "my-ftpd-tls-loader");
+            thread.setDaemon(true);
+            thread.start();
+        }
+        
+        if (exitAfterStartup)
+            System.exit(checkGreeting() ? 0 : 1);
+    }
+    
+    /**
+     * Connects to this server, reads the greeting and quits.
+     *
+     * @return              true if the greeting is received
+     */
+    private static boolean checkGreeting() {
+        try {
+            Socket socket = new Socket(listenAddress != null ? listenAddress : InetAddress.getLoopbackAddress(), controlPort);
+            try {
+                BufferedReader br = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+                String greeting = br.readLine();
+                socket.getOutputStream().write("QUIT\r\n".getBytes());
+                br.readLine();
+                System.out.println("Startup check: " + greeting);
+                return greeting != null && greeting.startsWith("220");
+            } finally {
+                socket.close();
+            }
+        } catch (IOException e) {
+            System.err.println("Startup check error: " + e.getMessage());
+            return false;
+        }
+    }
+    
+    /**
+     * Builds the command-line options.
+     *
+     * @return              options
+     */
+    private static Options buildOptions() {
+        FtpServerConfig defaults = new FtpServerConfig();
         Options options = new Options();
         
         // Option: --help
         Option optHelp = new Option("H", "help", false, "print this message");
         options.addOption(optHelp);
         
+        // Option: --config=<CONFIG_FILE>
+        Option optConfig = OptionBuilder.withArgName("CONFIG_FILE")
+            .withLongOpt("config")
+            .withDescription("read long options from a given file, one NAME[=VALUE] per line, "
+                             + "re-read on SIGHUP or SITE RELOAD")
+            .hasArg()
+            .create("C");
+        options.addOption(optConfig);
+        
         // Option: --ftp-home=<FTP_HOME>
         Option optFtpHome = OptionBuilder.withArgName("FTP_HOME")
             .withLongOpt("ftp-home")
@@ -47,42 +269,509 @@ public class FtpServer {
             .create("p");
         options.addOption(optPort);
         
-        CommandLineParser parser = new GnuParser();
-        try {
-            CommandLine line = parser.parse(options, args);
-            
-            if (line.hasOption("help")) {
-                HelpFormatter formatter = new HelpFormatter();
-                formatter.printHelp("my-ftpd [OPTION...]", options);
-                System.exit(-1);
+        // Option: --users=<USERS_FILE>
+        Option optUsers = OptionBuilder.withArgName("USERS_FILE")
+            .withLongOpt("users")
+            .withDescription("authenticate users with a given users file (default: accept any user)")
+            .hasArg()
+            .create("u");
+        options.addOption(optUsers);
+        
+        // Option: --hash-password
+        Option optHashPassword = new Option("P", "hash-password", false,
+                                            "read a password from stdin and print its hash for the users file");
+        options.addOption(optHashPassword);
+        
+        // Option: --keystore=<KEYSTORE>
+        Option optKeystore = OptionBuilder.withArgName("KEYSTORE")
+            .withLongOpt("keystore")
+            .withDescription("enable FTPS with the certificate in a given key store (.jks or .p12)")
+            .hasArg()
+            .create("k");
+        options.addOption(optKeystore);
+        
+        // Option: --keystore-password=<PASSWORD>
+        Option optKeystorePassword = OptionBuilder.withArgName("PASSWORD")
+            .withLongOpt("keystore-password")
+            .withDescription("password of the key store (default: empty)")
+            .hasArg()
+            .create("K");
+        options.addOption(optKeystorePassword);
+        
+        // Option: --implicit-tls
+        Option optImplicitTls = new Option("I", "implicit-tls", false,
+                                           "use implicit FTPS, i.e. TLS from the start (requires --keystore)");
+        options.addOption(optImplicitTls);
+        
+        // Option: --idle-timeout=<SECONDS>
+        Option optIdleTimeout = OptionBuilder.withArgName("SECONDS")
+            .withLongOpt("idle-timeout")
+            .withDescription("close idle control connections after a given time (default: "
+                             + defaults.getIdleTimeout() / 1000 + ")")
+            .hasArg()
+            .create("t");
+        options.addOption(optIdleTimeout);
+        
+        // Option: --data-timeout=<SECONDS>
+        Option optDataTimeout = OptionBuilder.withArgName("SECONDS")
+            .withLongOpt("data-timeout")
+            .withDescription("abort stalled data connections after a given time (default: "
+                             + defaults.getDataTimeout() / 1000 + ")")
+            .hasArg()
+            .create("T");
+        options.addOption(optDataTimeout);
+        
+        // Option: --dedup-store=<DIR>
+        Option optDedupStore = OptionBuilder.withArgName("DIR")
+            .withLongOpt("dedup-store")
+            .withDescription("store uploads deduplicated as chunks in a given dir (default: store as is)")
+            .hasArg()
+            .create("d");
+        options.addOption(optDedupStore);
+        
+        // Option: --quota-file=<QUOTA_FILE>
+        Option optQuotaFile = OptionBuilder.withArgName("QUOTA_FILE")
+            .withLongOpt("quota-file")
+            .withDescription("enforce user and dir quotas in a given file, with usage kept in QUOTA_FILE.journal")
+            .hasArg()
+            .create("q");
+        options.addOption(optQuotaFile);
+        
+        // Option: --cluster-seeds=<HOST:PORT,...>
+        Option optClusterSeeds = OptionBuilder.withArgName("HOST:PORT,...")
+            .withLongOpt("cluster-seeds")
+            .withDescription("join a cluster through the given nodes (default: not clustered)")
+            .hasArg()
+            .create("c");
+        options.addOption(optClusterSeeds);
+        
+        // Option: --cluster-secret=<SECRET>
+        Option optClusterSecret = OptionBuilder.withArgName("SECRET")
+            .withLongOpt("cluster-secret")
+            .withDescription("secret shared by all nodes of the cluster, authenticating gossip and proxied requests")
+            .hasArg()
+            .create("S");
+        options.addOption(optClusterSecret);
+        
+        // Option: --cluster-address=<HOST>
+        Option optClusterAddress = OptionBuilder.withArgName("HOST")
+            .withLongOpt("cluster-address")
+            .withDescription("address of this node as seen by other nodes (default: 127.0.0.1)")
+            .hasArg()
+            .create("a");
+        options.addOption(optClusterAddress);
+        
+        // Option: --listen-address=<HOST>
+        Option optListenAddress = OptionBuilder.withArgName("HOST")
+            .withLongOpt("listen-address")
+            .withDescription("listen on a given address (default: all IPv4 and IPv6 addresses)")
+            .hasArg()
+            .create("l");
+        options.addOption(optListenAddress);
+        
+        // Option: --passive-address=<HOST>
+        Option optPassiveAddress = OptionBuilder.withArgName("HOST")
+            .withLongOpt("passive-address")
+            .withDescription("advertise a given IPv4 address in PASV responses, e.g. behind NAT")
+            .hasArg()
+            .create("A");
+        options.addOption(optPassiveAddress);
+        
+        // Option: --acceptors=<N>
+        Option optAcceptors = OptionBuilder.withArgName("N")
+            .withLongOpt("acceptors")
+            .withDescription("accept connections on N threads, with SO_REUSEPORT listeners if supported (default: "
+                             + acceptors + ")")
+            .hasArg()
+            .create("n");
+        options.addOption(optAcceptors);
+        
+        // Option: --drain-timeout=<SECONDS>
+        Option optDrainTimeout = OptionBuilder.withArgName("SECONDS")
+            .withLongOpt("drain-timeout")
+            .withDescription("on SIGTERM, wait up to a given time for transfers to finish (default: "
+                             + drainTimeout / 1000 + ")")
+            .hasArg()
+            .create("D");
+        options.addOption(optDrainTimeout);
+        
+        // Option: --exit-after-startup
+        Option optExitAfterStartup = new Option("X", "exit-after-startup", false,
+                                                "start up, check the greeting, then exit (for building the CDS archive)");
+        options.addOption(optExitAfterStartup);
+        
+        return options;
+    }
+    
+    /**
+     * Accepts connections and starts a thread for each.
+     *
+     * When the server is draining, the connections already queued in the
+     * backlog of a listener of its own are accepted and served too, and the
+     * listener is closed once the backlog is empty, as closing it would
+     * reset them.
+     *
+     * @param  socket       listener
+     */
+    private static void acceptLoop(ServerSocket socket) {
+        while (true) {
+            try {
+                Socket connection;
+                if (!isDraining)
+                    connection = socket.accept();
+                else if ((connection = acceptPending(socket)) == null) {
+                    socket.close();
+                    return;
+                }
+                final FtpServerConnection session = new FtpServerConnection(config, timer, connection);
+                connections.add(session);
+                Thread thread = new Thread(new Runnable() {
+                    public void run() {
+                        try {
+                            session.run();
+                        } finally {
+                            connections.remove(session);
+                        }
+                    }
+                });
+                thread.start();
+            } catch (SocketTimeoutException e) {
+                // Checks again whether the server is draining
+            } catch (IllegalBlockingModeException e) {
+                // Another acceptor of this listener has started draining it
+            } catch (IOException e) {
+                if (socket.isClosed())
+                    return;
+                System.err.println("FTP error: " + e.getMessage());
             }
-            
-            if (line.hasOption("ftp-home"))
-                ftpHome = line.getOptionValue("ftp-home");
-            if (line.hasOption("port"))
-                controlPort = Integer.parseInt(line.getOptionValue("port"));
+        }
+    }
+    
+    /**
+     * Accepts a connection queued in the backlog of a listener, without
+     * waiting for one.
+     *
+     * @param  socket       listener
+     * @return              connection, or null if the backlog is empty
+     * @throws IOException
+     */
+    private static Socket acceptPending(ServerSocket socket) throws IOException {
+        ServerSocketChannel channel = socket.getChannel();
+        channel.configureBlocking(false);
+        SocketChannel connection = channel.accept();
+        if (connection == null)
+            return null;
+        connection.configureBlocking(true);
+        return connection.socket();
+    }
+    
+    /**
+     * Reloads the settings for new connections from the command line and
+     * the config file. The dedup store, cluster membership and quota file
+     * cannot be changed without a restart and are kept as they are, though
+     * the quotas are read again from the quota file.
+     *
+     * @throws IOException  if the settings are invalid, in which case the
+     *                      current settings are kept
+     */
+    public static synchronized void reload() throws IOException {
+        try {
+            config = loadConfig(parseCommandLine(buildOptions(), commandLineArgs), config);
         } catch (ParseException e) {
-            System.err.println("Command-line error: " + e.getMessage());
-            System.exit(-1);
+            throw new IOException(e.getMessage(), e);
         }
+        System.err.println(new Date() + " Configuration reloaded");
+    }
+    
+    /**
+     * Starts a new server with the same command line, then drains this one.
+     * An inherited listener is passed on to the new server, which then
+     * accepts the connections queued in it; otherwise the new server opens
+     * its own listener with SO_REUSEPORT, and this one drains once it is
+     * running.
+     *
+     * Both servers run at the same time, so this is refused when they would
+     * share state that only one process may own: the journals of the dedup
+     * store and the quota file, and the gossip port of a cluster node.
+     *
+     * @throws IOException  if the new server cannot be started, in which case
+     *                      this one keeps running
+     */
+    public static synchronized void restart() throws IOException {
+        if (isDraining)
+            return;
+        FtpServerConfig config = FtpServer.config;
+        if (config.getChunkStore() != null || config.getQuotaLedger() != null || config.getCluster() != null)
+            throw new IOException("Not supported with --dedup-store, --quota-file or --cluster-seeds;"
+                                  + " use SIGTERM and start the new server once this one has exited");
+        List<String> command = new ArrayList<String>();
+        command.add(new File(new File(System.getProperty("java.home"), "bin"), "java").getPath());
+        command.addAll(ManagementFactory.getRuntimeMXBean().getInputArguments());
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add(FtpServer.class.getName());
+        command.addAll(Arrays.asList(commandLineArgs));
         
-        ServerSocket socket = null;
-        try {
-            socket = new ServerSocket(controlPort);
-        } catch (IOException e) {
-            System.err.println("Socket error: " + e.getMessage());
-            System.exit(-1);
+        // The listener, if inherited, is the standard input
+        ProcessBuilder builder = new ProcessBuilder(command);
+        builder.redirectInput(ProcessBuilder.Redirect.INHERIT);
+        builder.redirectError(ProcessBuilder.Redirect.INHERIT);
+        Process process = builder.start();
+        String greeting = new BufferedReader(new InputStreamReader(process.getInputStream())).readLine();
+        if (greeting == null || !greeting.startsWith("my-ftpd running")) {
+            process.destroy();
+            throw new IOException("New server failed to start");
+        }
+        System.err.println(new Date() + " New server started");
+        drain();
+    }
+    
+    /**
+     * Stops accepting connections, lets open connections finish their
+     * transfers, then exits. A new server started with SO_REUSEPORT on the
+     * same port, or sharing the inherited listener, takes over new
+     * connections in the meantime, except with a dedup store, quota file or
+     * cluster, whose state only one process may own at a time (see restart()).
+     *
+     * An inherited listener stays open in the process it was inherited from
+     * or passed on to, and is closed at once. A listener of this server is
+     * only closed once its backlog is empty, though a connection arriving
+     * right then is still reset unless the kernel moves it to another
+     * listener (net.ipv4.tcp_migrate_req on Linux). Connections accepted
+     * from its backlog are served like any other until they quit, rather
+     * than told to reconnect.
+     */
+    public static synchronized void drain() {
+        if (isDraining)
+            return;
+        List<FtpServerConnection> open = new ArrayList<FtpServerConnection>(connections);
+        isDraining = true;
+        System.err.println(new Date() + " Draining " + open.size() + " connection(s)");
+        for (FtpServerConnection connection : open)
+            connection.drain();
+        if (isInherited) {
+            for (ServerSocket socket : sockets) {
+                try {
+                    socket.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+        for (Thread thread : acceptorThreads) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                break;
+            }
         }
-        System.out.println("my-ftpd running on port " + controlPort);
         
-        while (true) {
+        long deadline = System.currentTimeMillis() + drainTimeout;
+        while (!connections.isEmpty() && System.currentTimeMillis() < deadline) {
             try {
-                Socket connection = socket.accept();
-                Thread thread = new Thread(new FtpServerConnection(ftpHome, connection));
-                thread.start();
-            } catch (IOException e) {
-                System.err.print("FTP error: " + e.getMessage());
+                Thread.sleep(100);
+            } catch (InterruptedException e) {
+                break;
+            }
+        }
+        System.err.println(new Date() + " Drained, exiting");
+        System.exit(0);
+    }
+    
+    /**
+     * Installs handlers of SIGHUP (reload), SIGTERM (drain and exit) and
+     * SIGUSR2 (start a new server, then drain and exit).
+     */
+    private static void installSignalHandlers() {
+        installSignalHandler("HUP", new Runnable() {
+            public void run() {
+                try {
+                    reload();
+                } catch (IOException e) {
+                    System.err.println("Reload error: " + e.getMessage());
+                }
+            }
+        });
+        installSignalHandler("TERM", new Runnable() {
+            public void run() {
+                drain();
+            }
+        });
+        installSignalHandler("USR2", new Runnable() {
+            public void run() {
+                try {
+                    restart();
+                } catch (IOException e) {
+                    System.err.println("Restart error: " + e.getMessage());
+                }
+            }
+        });
+    }
+    
+    /**
+     * Installs a handler of a signal. sun.misc.Signal is not part of the
+     * Java API, so it is used through reflection.
+     *
+     * @param  name         signal name, without the SIG prefix
+     * @param  handler      handler of the signal
+     */
+    private static void installSignalHandler(String name, final Runnable handler) {
+        try {
+            Class<?> signalClass = Class.forName("sun.misc.Signal");
+            Class<?> handlerClass = Class.forName("sun.misc.SignalHandler");
+            Object signal = signalClass.getConstructor(String.class).newInstance(name);
+            InvocationHandler invocationHandler = new InvocationHandler() {
+                public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                    if (method.getDeclaringClass() == Object.class)
+                        return method.invoke(this, args);
+                    handler.run();
+                    return null;
+                }
+            };
+            Object proxy = java.lang.reflect.Proxy.newProxyInstance(handlerClass.getClassLoader(),
+                                                                    new Class<?>[] { handlerClass },
+                                                                    invocationHandler);
+            signalClass.getMethod("handle", signalClass, handlerClass).invoke(null, signal, proxy);
+        } catch (InvocationTargetException e) {
+            System.err.println("SIG" + name + " handler not installed: " + e.getCause().getMessage());
+        } catch (ReflectiveOperationException e) {
+            System.err.println("SIG" + name + " handler not installed: " + e);
+        }
+    }
+    
+    /**
+     * Parses the command line, adding the options of the config file given
+     * by --config. Options on the command line take precedence.
+     *
+     * @param  options      options
+     * @param  args         command-line arguments
+     * @return              parsed command line
+     * @throws ParseException
+     * @throws IOException
+     */
+    private static CommandLine parseCommandLine(Options options, String[] args)
+        throws ParseException, IOException {
+        CommandLineParser parser = new GnuParser();
+        CommandLine line = parser.parse(options, args);
+        if (!line.hasOption("config"))
+            return line;
+        
+        List<String> merged = new ArrayList<String>(Arrays.asList(args));
+        BufferedReader br = new BufferedReader(new FileReader(line.getOptionValue("config")));
+        try {
+            String entry;
+            while ((entry = br.readLine()) != null) {
+                entry = entry.trim();
+                if (entry.isEmpty() || entry.startsWith("#"))
+                    continue;
+                String name = entry.split("=", 2)[0].trim();
+                if (!options.hasOption(name))
+                    throw new ParseException("Unrecognized option in config file: " + name);
+                if (!line.hasOption(name))
+                    merged.add("--" + entry);
             }
+        } finally {
+            br.close();
+        }
+        return parser.parse(options, merged.toArray(new String[merged.size()]));
+    }
+    
+    /**
+     * Creates the settings for connections from the command line.
+     *
+     * @param  line         parsed command line
+     * @param  previous     current settings when reloading, or null
+     * @return              settings
+     * @throws ParseException
+     * @throws IOException
+     */
+    private static FtpServerConfig loadConfig(CommandLine line, FtpServerConfig previous)
+        throws ParseException, IOException {
+        FtpServerConfig config = new FtpServerConfig();
+        
+        if (line.hasOption("ftp-home"))
+            config.setFtpHome(line.getOptionValue("ftp-home"));
+        
+        if (line.hasOption("users"))
+            config.setUserStore(new FtpCachingUserStore(new FtpFileUserStore(new File(line.getOptionValue("users"))),
+                                                        CREDENTIAL_CACHE_CAPACITY, CREDENTIAL_CACHE_TTL));
+        
+        if (line.hasOption("keystore")) {
+            String password = line.getOptionValue("keystore-password", "");
+            config.setTls(new FtpTls(new File(line.getOptionValue("keystore")), password.toCharArray()));
+            // Startup does not wait for TLS, but a reload must not put a bad key store in use
+            if (previous != null)
+                config.getTls().load();
+        }
+        if (line.hasOption("implicit-tls")) {
+            if (config.getTls() == null)
+                throw new ParseException("--implicit-tls requires --keystore");
+            config.setImplicitTls(true);
+        }
+        
+        if (line.hasOption("idle-timeout"))
+            config.setIdleTimeout(Long.parseLong(line.getOptionValue("idle-timeout")) * 1000);
+        if (line.hasOption("data-timeout"))
+            config.setDataTimeout(Long.parseLong(line.getOptionValue("data-timeout")) * 1000);
+        
+        if (line.hasOption("passive-address"))
+            config.setPassiveAddress(InetAddress.getByName(line.getOptionValue("passive-address")));
+        
+        String ftpHome = new File(config.getFtpHome()).getCanonicalPath();
+        if (previous != null) {
+            config.setChunkStore(previous.getChunkStore());
+            config.setCluster(previous.getCluster());
+            config.setQuotaLedger(previous.getQuotaLedger());
+            if (config.getQuotaLedger() != null)
+                config.getQuotaLedger().reload(config.getUserStore(), ftpHome);
+            return config;
+        }
+        
+        if (line.hasOption("dedup-store"))
+            config.setChunkStore(new FtpChunkStore(new File(line.getOptionValue("dedup-store"))));
+        
+        if (line.hasOption("quota-file"))
+            config.setQuotaLedger(new FtpQuotaLedger(new File(line.getOptionValue("quota-file")), config.getUserStore(),
+                                                     ftpHome, config.getChunkStore()));
+        
+        if (line.hasOption("cluster-seeds")) {
+            String self = line.getOptionValue("cluster-address", "127.0.0.1") + ":" + controlPort;
+            List<String> seeds = Arrays.asList(line.getOptionValue("cluster-seeds").split(","));
+            if (!line.hasOption("cluster-secret"))
+                throw new ParseException("--cluster-seeds requires --cluster-secret");
+            config.setCluster(new FtpCluster(self, seeds, line.getOptionValue("cluster-secret"), ftpHome,
+                                             config.getChunkStore()));
+        }
+        return config;
+    }
+    
+    /**
+     * Opens a listener on the control port, with SO_REUSEPORT if supported.
+     *
+     * @return              listener
+     * @throws IOException
+     */
+    private static ServerSocket openListener() throws IOException {
+        ServerSocketChannel channel = ServerSocketChannel.open();
+        SocketOption<Boolean> option = getReusePortOption();
+        if (option != null && channel.supportedOptions().contains(option))
+            channel.setOption(option, true);
+        channel.bind(new InetSocketAddress(listenAddress, controlPort), BACKLOG);
+        return channel.socket();
+    }
+    
+    /**
+     * Returns the SO_REUSEPORT socket option, which is only available on
+     * Java 9 or later.
+     *
+     * @return              SO_REUSEPORT option, or null if not available
+     */
+    @SuppressWarnings("unchecked")
+    private static SocketOption<Boolean> getReusePortOption() {
+        try {
+            Field field = StandardSocketOptions.class.getField("SO_REUSEPORT");
+            return (SocketOption<Boolean>) field.get(null);
+        } catch (NoSuchFieldException | IllegalAccessException e) {
+            return null;
         }
     }
 }
@@ -0,0 +1,144 @@
+import java.net.*;
+
+/**
+ * FtpServerConfig class.
+ *
+ * Settings shared by all connections of a server.
+ *
+ * @author  Mort Yao <mort.yao@gmail.com>
+ *
+ * @see     FtpServer
+ * @see     FtpServerConnection
+ */
+public class FtpServerConfig {
+    /**
+     * FTP home path on the server (default: current dir).
+     */
+    private String ftpHome = System.getProperty("user.dir");
+    
+    /**
+     * User store (default: none, any user is accepted).
+     */
+    private FtpUserStore userStore = null;
+    
+    /**
+     * TLS context for FTPS (default: none, FTPS disabled).
+     */
+    private FtpTls tls = null;
+    
+    /**
+     * Is every connection implicit FTPS (default: false, explicit AUTH TLS).
+     */
+    private boolean implicitTls = false;
+    
+    /**
+     * Idle timeout of a control connection in milliseconds (default: 5 min).
+     */
+    private long idleTimeout = 300 * 1000;
+    
+    /**
+     * Timeout of a stalled data connection in milliseconds (default: 1 min).
+     */
+    private long dataTimeout = 60 * 1000;
+    
+    /**
+     * Deduplicating store for uploads (default: none, uploads are stored as is).
+     */
+    private FtpChunkStore chunkStore = null;
+    
+    /**
+     * Cluster this server belongs to (default: none, not clustered).
+     */
+    private FtpCluster cluster = null;
+    
+    /**
+     * Address advertised in PASV responses, e.g. the public address behind NAT
+     * (default: none, the local address of the control connection).
+     */
+    private InetAddress passiveAddress = null;
+    
+    /**
+     * Ledger of disk usage for quotas (default: none, no quotas).
+     */
+    private FtpQuotaLedger quotaLedger = null;
+    
+    public String getFtpHome() {
+        return ftpHome;
+    }
+    
+    public void setFtpHome(String ftpHome) {
+        this.ftpHome = ftpHome;
+    }
+    
+    public FtpUserStore getUserStore() {
+        return userStore;
+    }
+    
+    public void setUserStore(FtpUserStore userStore) {
+        this.userStore = userStore;
+    }
+    
+    public FtpTls getTls() {
+        return tls;
+    }
+    
+    public void setTls(FtpTls tls) {
+        this.tls = tls;
+    }
+    
+    public boolean isImplicitTls() {
+        return implicitTls;
+    }
+    
+    public void setImplicitTls(boolean implicitTls) {
+        this.implicitTls = implicitTls;
+    }
+    
+    public long getIdleTimeout() {
+        return idleTimeout;
+    }
+    
+    public void setIdleTimeout(long idleTimeout) {
+        this.idleTimeout = idleTimeout;
+    }
+    
+    public long getDataTimeout() {
+        return dataTimeout;
+    }
+    
+    public void setDataTimeout(long dataTimeout) {
+        this.dataTimeout = dataTimeout;
+    }
+    
+    public FtpChunkStore getChunkStore() {
+        return chunkStore;
+    }
+    
+    public void setChunkStore(FtpChunkStore chunkStore) {
+        this.chunkStore = chunkStore;
+    }
+    
+    public FtpCluster getCluster() {
+        return cluster;
+    }
+    
+    public void setCluster(FtpCluster cluster) {
+        this.cluster = cluster;
+    }
+    
+    public InetAddress getPassiveAddress() {
+        return passiveAddress;
+    }
+    
+    public void setPassiveAddress(InetAddress passiveAddress) {
+        this.passiveAddress = passiveAddress;
+    }
+    
+    public FtpQuotaLedger getQuotaLedger() {
+        return quotaLedger;
+    }
+    
+    public void setQuotaLedger(FtpQuotaLedger quotaLedger) {
+        this.quotaLedger = quotaLedger;
+    }
+}
@@ -1,6 +1,8 @@
 import java.io.*;
 import java.net.*;
+import java.security.*;
 import java.util.*;
+import java.util.regex.*;
 
 /**
  * FtpServerConnection class.
@@ -11,9 +13,24 @@ import java.util.*;
  */
 public class FtpServerConnection implements Runnable {
     /**
-     * FTP home path on the server.
+     * FTP home path on the server. Changed to the home dir of the user on login.
      */
-    private final String ftpHome;
+    private String ftpHome;
+    
+    /**
+     * User store, or null if any user is accepted.
+     */
+    private final FtpUserStore userStore;
+    
+    /**
+     * User name specified by the last USER.
+     */
+    private String userName = null;
+    
+    /**
+     * Logged-in user, or null if not logged in (or if no user store is used).
+     */
+    private FtpUser user = null;
     
     /**
      * Current working directory.
@@ -33,10 +50,35 @@ public class FtpServerConnection implements Runnable {
     /**
      * Socket for FTP.
      */
-    private final Socket connection;
-    private final BufferedReader in;
-    private final OutputStream out;
-    private final PrintStream pout;
+    private Socket connection;
+    private final FtpRequestReader in;
+    private OutputStream out;
+    private PrintStream pout;
+    
+    /**
+     * TLS context, or null if FTPS is not enabled.
+     */
+    private final FtpTls tls;
+    
+    /**
+     * Is the connection implicit FTPS (TLS from the start).
+     */
+    private final boolean implicitTls;
+    
+    /**
+     * Is the control connection protected by TLS.
+     */
+    private boolean isSecure = false;
+    
+    /**
+     * Has a PBSZ command been received (required before PROT).
+     */
+    private boolean isPbszSet = false;
+    
+    /**
+     * Is the data connection protected by TLS (PROT P).
+     */
+    private boolean isDataProtected = false;
     
     /**
      * Is data trasmission in passive mode.
@@ -54,11 +96,125 @@ public class FtpServerConnection implements Runnable {
      */
     private ServerSocket dataSocket;
     
+    /**
+     * Address advertised in PASV responses, or null to use the local address
+     * of the control connection.
+     */
+    private final InetAddress passiveAddress;
+    
+    /**
+     * Has an EPSV ALL command been received, after which only EPSV may set up
+     * data connections.
+     */
+    private boolean isEpsvAll = false;
+    
     /**
      * Has a QUIT command been received.
      */
     private volatile boolean shouldStop = false;
     
+    /**
+     * Is the server draining, so the connection must be closed once the
+     * current request is done.
+     */
+    private volatile boolean isDraining = false;
+    
+    /**
+     * Is the connection waiting for a request (i.e. not in the middle of one).
+     */
+    private volatile boolean isWaiting = false;
+    
+    /**
+     * Has the connection been idle for too long, so the session thread must
+     * send 421 and close it.
+     */
+    private volatile boolean isTimedOut = false;
+    
+    /**
+     * Timer for timeouts, and the pending timeout of this connection.
+     */
+    private final FtpTimerWheel timer;
+    private volatile FtpTimerWheel.Timeout timeout = null;
+    
+    /**
+     * Idle timeout of the control connection, and timeout of a stalled data
+     * connection, in milliseconds.
+     */
+    private final long idleTimeout;
+    private final long dataTimeout;
+    
+    /**
+     * Deduplicating store for uploads, or null if uploads are stored as is.
+     */
+    private final FtpChunkStore chunkStore;
+    
+    /**
+     * Ledger of disk usage for quotas, or null if no quotas are enforced.
+     */
+    private final FtpQuotaLedger quotaLedger;
+    
+    /**
+     * Cluster this server belongs to, or null if not clustered.
+     */
+    private final FtpCluster cluster;
+    
+    /**
+     * Is this a connection from another node, whose requests must be served
+     * locally rather than forwarded to the owner node.
+     */
+    private boolean isClusterLocal = false;
+    
+    /**
+     * Nonce given by the last SITE CLUSTER NONCE, which another node must
+     * sign with the cluster secret to send SITE CLUSTER LOCAL.
+     */
+    private String clusterNonce = null;
+    
+    /**
+     * Random number generator for nonces.
+     */
+    private static final SecureRandom random = new SecureRandom();
+    
+    /**
+     * Connections to other nodes, logged in as the user, by node ID.
+     */
+    private final Map<String, FtpClusterClient> peers = new HashMap<String, FtpClusterClient>();
+    
+    /**
+     * Password given by the last PASS, kept only in cluster mode to log in
+     * to owner nodes on behalf of the user.
+     */
+    private String password = null;
+    
+    /**
+     * Time of the last request or data transfer progress.
+     */
+    private volatile long lastActivity = System.currentTimeMillis();
+    
+    /**
+     * Is a data transfer in progress, and its socket once connected.
+     */
+    private volatile boolean isTransferring = false;
+    private volatile Socket dataConnection = null;
+    
+    /**
+     * Thrown when the data connection cannot be opened, as opposed to a
+     * transfer that fails once started.
+     */
+    private static class DataConnectionException extends IOException {
+        private static final long serialVersionUID = 1L;
+        
+        public DataConnectionException(String message, Throwable cause) {
+            super(message, cause);
+        }
+    }
+    
+    /**
+     * Plain socket under the control connection, which stays the same when
+     * TLS is started on it.
+     */
+    private final Socket plainConnection;
+    
     /**
      * Prints a log message on standard error.
      *
@@ -71,7 +227,9 @@ public class FtpServerConnection implements Runnable {
     }
     
     /**
-     * Sends an FTP response.
+     * Sends an FTP response. The response is buffered until the next call to
+     * flushResponses(), so that responses to pipelined requests are written
+     * all at once.
      *
      * @param  code         response code
      * @param  msg          response arg
@@ -79,7 +237,191 @@ public class FtpServerConnection implements Runnable {
      */
     private void sendResponse(int code, String msg) throws IOException {
         pout.print(code + " " + msg + "\r\n");
-        out.flush();
+    }
+    
+    /**
+     * Flushes all buffered FTP responses.
+     *
+     * @throws IOException
+     */
+    private void flushResponses() throws IOException {
+        pout.flush();
+    }
+    
+    /**
+     * Opens the FTP data connection. Buffered responses are flushed first,
+     * since the client may be waiting for them before connecting.
+     *
+     * @return              socket for FTP data
+     * @throws DataConnectionException
+     *                      if no data port is set up or the data connection
+     *                      cannot be opened
+     * @throws IOException
+     */
+    private Socket openDataConnection() throws IOException {
+        flushResponses();
+        if (isPassive ? dataSocket == null : dataHost == null)
+            throw new DataConnectionException("No data port set up", null);
+        lastActivity = System.currentTimeMillis();
+        isTransferring = true;
+        Socket dataConnection = null;
+        try {
+            if (isPassive) {
+                dataSocket.setSoTimeout((int) dataTimeout);
+                dataConnection = dataSocket.accept();
+            } else {
+                dataConnection = new Socket();
+                dataConnection.connect(new InetSocketAddress(dataHost, dataPort), (int) dataTimeout);
+            }
+            dataConnection.setSoTimeout((int) dataTimeout);
+            if (isDataProtected)
+                dataConnection = tls.wrap(dataConnection);
+            this.dataConnection = dataConnection;
+        } catch (IOException e) {
+            closeQuietly(dataConnection);
+            throw new DataConnectionException(e.getMessage(), e);
+        } finally {
+            if (this.dataConnection == null)
+                isTransferring = false;
+        }
+        return dataConnection;
+    }
+    
+    /**
+     * Sends the reply to a data transfer that failed: 425 if the data
+     * connection could not be opened, the given reply otherwise.
+     *
+     * @param  e            error of the transfer
+     * @param  code         reply code for a transfer that failed once started
+     * @param  msg          reply text for a transfer that failed once started
+     * @throws IOException
+     */
+    private void sendTransferError(IOException e, int code, String msg) throws IOException {
+        log("Transfer failed: " + e.getMessage());
+        if (e instanceof DataConnectionException)
+            sendResponse(425, "Can't open data connection.");
+        else
+            sendResponse(code, msg);
+    }
+    
+    /**
+     * Closes the FTP data connection.
+     *
+     * @param  dataConnection   socket for FTP data
+     */
+    private void closeDataConnection(Socket dataConnection) {
+        closeQuietly(dataConnection);
+        this.dataConnection = null;
+        isTransferring = false;
+        lastActivity = System.currentTimeMillis();
+    }
+    
+    /**
+     * Checks that the TLS context can be created, so that a client is not
+     * told to start a handshake that cannot take place.
+     *
+     * @return              true if TLS can be used
+     */
+    private boolean isTlsLoaded() {
+        try {
+            tls.load();
+            return true;
+        } catch (IOException e) {
+            log("TLS error: " + e.getMessage());
+            return false;
+        }
+    }
+    
+    /**
+     * Protects the control connection by TLS.
+     *
+     * @throws IOException
+     */
+    private void startTls() throws IOException {
+        connection = tls.wrap(connection);
+        in.setInputStream(connection.getInputStream());
+        out = new BufferedOutputStream(connection.getOutputStream());
+        pout = new PrintStream(out);
+        isSecure = true;
+    }
+    
+    /**
+     * Sends a multi-line FTP response.
+     *
+     * @param  code         response code
+     * @param  msg          response arg of the first line
+     * @param  text         lines to send in between, separated by CRLF
+     * @param  endMsg       response arg of the last line
+     * @throws IOException
+     */
+    private void sendResponse(int code, String msg, String text, String endMsg) throws IOException {
+        pout.print(code + "-" + msg + "\r\n");
+        for (String line : text.split("\r\n"))
+            if (!line.isEmpty())
+                pout.print(" " + line + "\r\n");
+        pout.print(code + " " + endMsg + "\r\n");
+    }
+    
+    /**
+     * Returns a writer that sends text as the lines in between of a
+     * multi-line response, like sendResponse(code, msg, text, endMsg) does,
+     * without holding more than one line in memory.
+     *
+     * @return              writer of response lines
+     */
+    private Writer getReplyLineWriter() {
+        return new Writer() {
+            private final StringBuilder line = new StringBuilder();
+            
+            public void write(char[] cbuf, int off, int len) {
+                for (int i = off; i < off + len; i++) {
+                    if (cbuf[i] == '\n')
+                        endLine();
+                    else if (cbuf[i] != '\r')
+                        line.append(cbuf[i]);
+                }
+            }
+            
+            private void endLine() {
+                if (line.length() > 0)
+                    pout.print(" " + line + "\r\n");
+                line.setLength(0);
+            }
+            
+            public void flush() {
+            }
+            
+            public void close() {
+                endLine();
+            }
+        };
+    }
+    
+    /**
+     * Returns the options of a request, i.e. the arguments starting with '-'
+     * that precede the pathname, concatenated.
+     *
+     * @param  command      request split into arguments
+     * @return              options, without the leading '-'
+     */
+    private static String getOptions(String command[]) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 1; i < command.length && command[i].startsWith("-"); i++)
+            sb.append(command[i].substring(1));
+        return sb.toString();
+    }
+    
+    /**
+     * Returns the pathname argument of a request, which follows the options.
+     *
+     * @param  command      request split into arguments
+     * @return              pathname, or null if no pathname is given
+     */
+    private static String getPathArgument(String command[]) {
+        for (int i = 1; i < command.length; i++)
+            if (!command[i].startsWith("-"))
+                return command[i];
+        return null;
     }
     
     /**
@@ -89,18 +431,19 @@ public class FtpServerConnection implements Runnable {
      * @throws IOException
      */
     private void sendData(BufferedReader br) throws IOException {
-        Socket dataConnection;
-        if (isPassive)
-            dataConnection = dataSocket.accept();
-        else
-            dataConnection = new Socket(dataHost, dataPort);
-        OutputStream dout = new BufferedOutputStream(dataConnection.getOutputStream());
-        PrintStream pdout = new PrintStream(dout);
-        String line;
-        while ((line = br.readLine()) != null)
-            pdout.print(line + "\r\n");
-        dout.flush();
-        dataConnection.close();
+        Socket dataConnection = openDataConnection();
+        try {
+            OutputStream dout = new BufferedOutputStream(dataConnection.getOutputStream());
+            PrintStream pdout = new PrintStream(dout);
+            String line;
+            while ((line = br.readLine()) != null) {
+                pdout.print(line + "\r\n");
+                lastActivity = System.currentTimeMillis();
+            }
+            dout.flush();
+        } finally {
+            closeDataConnection(dataConnection);
+        }
     }
     
     /**
@@ -110,16 +453,15 @@ public class FtpServerConnection implements Runnable {
      * @throws IOException
      */
     private void sendData(String data) throws IOException {
-        Socket dataConnection;
-        if (isPassive)
-            dataConnection = dataSocket.accept();
-        else
-            dataConnection = new Socket(dataHost, dataPort);
-        OutputStream dout = new BufferedOutputStream(dataConnection.getOutputStream());
-        PrintStream pdout = new PrintStream(dout);
-        pdout.print(data);
-        dout.flush();
-        dataConnection.close();
+        Socket dataConnection = openDataConnection();
+        try {
+            OutputStream dout = new BufferedOutputStream(dataConnection.getOutputStream());
+            PrintStream pdout = new PrintStream(dout);
+            pdout.print(data);
+            dout.flush();
+        } finally {
+            closeDataConnection(dataConnection);
+        }
     }
     
     /**
@@ -129,39 +471,143 @@ public class FtpServerConnection implements Runnable {
      * @throws IOException
      */
     private void sendData(File file) throws IOException {
-        Socket dataConnection;
-        if (isPassive)
-            dataConnection = dataSocket.accept();
-        else
-            dataConnection = new Socket(dataHost, dataPort);
-        InputStream fileStream = new FileInputStream(file);
-        OutputStream dout = new BufferedOutputStream(dataConnection.getOutputStream());
-        byte[] buffer = new byte[1024];
-        while (fileStream.available() > 0)
-            dout.write(buffer, 0, fileStream.read(buffer));
-        dout.flush();
-        dataConnection.close();
+        Socket dataConnection = openDataConnection();
+        InputStream fileStream = null;
+        try {
+            OutputStream dout = new BufferedOutputStream(dataConnection.getOutputStream());
+            if (chunkStore != null && chunkStore.isManifest(file)) {
+                chunkStore.retrieve(file, trackActivity(dout));
+                dout.flush();
+                return;
+            }
+            fileStream = new FileInputStream(file);
+            byte[] buffer = new byte[1024];
+            int n;
+            while ((n = fileStream.read(buffer)) != -1) {
+                dout.write(buffer, 0, n);
+                lastActivity = System.currentTimeMillis();
+            }
+            dout.flush();
+        } finally {
+            closeQuietly(fileStream);
+            closeDataConnection(dataConnection);
+        }
+    }
+    
+    /**
+     * Receives FTP data and saves to a file, charging it to the quotas of
+     * the file if any.
+     *
+     * @param  file         file to save
+     * @param  append       true to append to the file
+     * @throws IOException
+     * @throws FtpQuotaLedger.QuotaExceededException
+     *                      if a quota is exceeded, in which case the data
+     *                      received so far is dropped
+     */
+    private void receiveData(File file, boolean append) throws IOException {
+        if (quotaLedger == null) {
+            receiveData(file, append, null, 0);
+            return;
+        }
+        
+        FtpQuotaLedger.Change change = quotaLedger.begin(file);
+        long[] before = change.getUsageBefore();
+        try {
+            if (!change.reserve(0, 1 - before[1]))
+                throw new FtpQuotaLedger.QuotaExceededException();
+            // Bytes overwriting the old file are not charged
+            receiveData(file, append, change, append ? 0 : before[0]);
+        } catch (FtpQuotaLedger.QuotaExceededException e) {
+            // A dedup upload leaves the old file as is, a plain one is truncated or removed
+            if (chunkStore == null && append && before[1] > 0) {
+                RandomAccessFile raf = new RandomAccessFile(file, "rw");
+                try {
+                    raf.setLength(before[0]);
+                } finally {
+                    raf.close();
+                }
+            } else if (chunkStore == null) {
+                file.delete();
+            }
+            throw e;
+        } finally {
+            change.commit();
+        }
     }
     
     /**
      * Receives FTP data and saves to a file.
      *
      * @param  file         file to save
+     * @param  append       true to append to the file
+     * @param  change       quota change the data is charged to, or null
+     * @param  credit       bytes that are not charged
      * @throws IOException
      */
-    private void receiveData(File file) throws IOException {
-        Socket dataConnection;
-        if (isPassive)
-            dataConnection = dataSocket.accept();
-        else
-            dataConnection = new Socket(dataHost, dataPort);
-        InputStream dataStream = dataConnection.getInputStream();
-        OutputStream fout = new BufferedOutputStream(new FileOutputStream(file));
-        byte[] buffer = new byte[1024];
-        while (dataStream.available() > 0)
-            fout.write(buffer, 0, dataStream.read(buffer));
-        fout.flush();
-        dataConnection.close();
+    private void receiveData(File file, boolean append, FtpQuotaLedger.Change change,
+                             long credit) throws IOException {
+        Socket dataConnection = openDataConnection();
+        OutputStream fout = null;
+        InputStream oldData = null;
+        try {
+            InputStream dataStream = dataConnection.getInputStream();
+            if (change != null)
+                dataStream = change.limit(dataStream, credit);
+            if (chunkStore != null) {
+                // Appending stores the old data and the new data as a whole
+                InputStream data = trackActivity(dataStream);
+                if (append && file.isFile()) {
+                    oldData = chunkStore.isManifest(file) ? chunkStore.open(file) : new FileInputStream(file);
+                    data = new SequenceInputStream(oldData, data);
+                }
+                chunkStore.store(data, file);
+                return;
+            }
+            fout = new BufferedOutputStream(new FileOutputStream(file, append));
+            byte[] buffer = new byte[1024];
+            int n;
+            while ((n = dataStream.read(buffer)) != -1) {
+                fout.write(buffer, 0, n);
+                lastActivity = System.currentTimeMillis();
+            }
+            fout.flush();
+        } finally {
+            closeQuietly(fout);
+            closeQuietly(oldData);
+            closeDataConnection(dataConnection);
+        }
+    }
+    
+    /**
+     * Wraps a data stream so that reads record activity for timeouts.
+     *
+     * @param  in           data stream
+     * @return              wrapped stream
+     */
+    private InputStream trackActivity(InputStream in) {
+        return new FilterInputStream(in) {
+            public int read(byte[] b, int off, int len) throws IOException {
+                int n = super.read(b, off, len);
+                lastActivity = System.currentTimeMillis();
+                return n;
+            }
+        };
+    }
+    
+    /**
+     * Wraps a data stream so that writes record activity for timeouts.
+     *
+     * @param  out          data stream
+     * @return              wrapped stream
+     */
+    private OutputStream trackActivity(OutputStream out) {
+        return new FilterOutputStream(out) {
+            public void write(byte[] b, int off, int len) throws IOException {
+                out.write(b, off, len);
+                lastActivity = System.currentTimeMillis();
+            }
+        };
     }
     
     /**
@@ -175,7 +621,12 @@ public class FtpServerConnection implements Runnable {
         InputStream is = process.getInputStream();
         InputStreamReader isr = new InputStreamReader(is);
         BufferedReader br = new BufferedReader(isr);
-        sendData(br);
+        try {
+            sendData(br);
+        } finally {
+            br.close();
+            process.destroy();
+        }
     }
     
     /**
@@ -198,103 +649,867 @@ public class FtpServerConnection implements Runnable {
      * @return              size of the pathname
      * @throws IOException
      */
-    private long getSize(String pathName) throws IOException {
-        if (pathName.startsWith("/"))
-            return new File(ftpHome, pathName).length();
-        else
-            return new File(new File(ftpHome, workingDir), pathName).length();
+    private long getSize(String pathName) throws IOException {
+        File file;
+        if (pathName.startsWith("/"))
+            file = new File(ftpHome, pathName);
+        else
+            file = new File(new File(ftpHome, workingDir), pathName);
+        if (chunkStore != null && chunkStore.isManifest(file))
+            return chunkStore.getSize(file);
+        return file.length();
+    }
+    
+    /**
+     * Returns true if a pathname is readable by the user.
+     *
+     * @param  pathName     pathname
+     * @return              true if the pathname is in FTP home path and readable
+     * @throws IOException
+     */
+    private boolean isPathAccessible(String pathName) throws IOException {
+        return isPathAccessible(pathName, 'r');
+    }
+    
+    /**
+     * Returns true if a pathname is accessible by the user.
+     *
+     * @param  pathName     pathname
+     * @param  access       access flag ('r' or 'w')
+     * @return              true if the pathname is in FTP home path and the
+     *                      user has the access to it
+     * @throws IOException
+     */
+    private boolean isPathAccessible(String pathName, char access) throws IOException {
+        String relPath = getVirtualPath(pathName);
+        if (relPath == null)
+            return false;
+        return user == null || user.hasPermission(relPath, access);
+    }
+    
+    /**
+     * Returns the absolute pathname of a client-side pathname as seen by the
+     * client, i.e. relative to FTP home path.
+     *
+     * @param  pathName     pathname
+     * @return              absolute client-side pathname, or null if the
+     *                      pathname is not in FTP home path
+     * @throws IOException
+     */
+    private String getVirtualPath(String pathName) throws IOException {
+        String path = getPath(pathName);
+        if (path.equals(ftpHome))
+            return "/";
+        else if (path.startsWith(ftpHome + File.separator))
+            return path.substring(ftpHome.length()).replace(File.separatorChar, '/');
+        else
+            return null;
+    }
+    
+    /**
+     * Returns true if the client is logged in, or if no login is required.
+     *
+     * @return              true if the client may access files
+     */
+    private boolean isLoggedIn() {
+        return userStore == null || user != null;
+    }
+    
+    /**
+     * Returns true if a pathname exists and is readable.
+     *
+     * @param  pathName     pathname
+     * @return              true if the pathname exists and is readable
+     * @throws IOException
+     */
+    private boolean isPathReadable(String pathName) throws IOException {
+        return new File(getPath(pathName)).exists() && new File(getPath(pathName)).canRead();
+    }
+    
+    /**
+     * Returns true if a pathname is an existing directory.
+     *
+     * @param  pathName     pathname
+     * @return              true if the pathname is a directory
+     * @throws IOException
+     */
+    private boolean isPathDirectory(String pathName) throws IOException {
+        return new File(getPath(pathName)).isDirectory();
+    }
+    
+    /**
+     * Returns true if a pathname exists and is writable.
+     *
+     * @param  pathName     pathname
+     * @return              true if the pathname exists and is writable
+     * @throws IOException
+     */
+    private boolean isPathWritable(String pathName) throws IOException {
+        return new File(getPath(pathName)).exists() && new File(getPath(pathName)).canWrite();
+    }
+    
+    /**
+     * Deletes a pathname on the server.
+     *
+     * @param   pathName     pathname
+     * @throws  IOException
+     */
+    private void dele(String pathName) throws IOException {
+        File file = new File(getPath(pathName));
+        FtpQuotaLedger.Change change = quotaLedger != null ? quotaLedger.begin(file) : null;
+        try {
+            if (chunkStore != null)
+                chunkStore.delete(file);
+            else
+                file.delete();
+        } finally {
+            if (change != null)
+                change.commit();
+            refreshIndex(file);
+        }
+    }
+    
+    /**
+     * Renames the old frName to a new pathname on the server.
+     *
+     * @param  pathName     new pathname
+     * @throws IOException
+     * @throws FtpQuotaLedger.QuotaExceededException
+     *                      if the quotas of the new pathname would be exceeded
+     */
+    private void rnto(String pathName) throws IOException {
+        File from = new File(getPath(frPath));
+        File to = new File(getPath(pathName));
+        FtpQuotaLedger.Change fromChange = null, toChange = null;
+        try {
+            if (quotaLedger != null) {
+                // Moving within a quota changes nothing, moving into one needs room
+                fromChange = quotaLedger.begin(from);
+                toChange = quotaLedger.begin(to);
+                long[] moved = fromChange.getUsageBefore();
+                long[] replaced = toChange.getUsageBefore();
+                if (!toChange.reserve(Math.max(0, moved[0] - replaced[0]), Math.max(0, moved[1] - replaced[1]),
+                                      fromChange))
+                    throw new FtpQuotaLedger.QuotaExceededException();
+            }
+            if (chunkStore != null)
+                chunkStore.rename(from, to);
+            else
+                from.renameTo(to);
+        } finally {
+            if (fromChange != null)
+                fromChange.commit();
+            if (toChange != null)
+                toChange.commit();
+            refreshIndex(from);
+            refreshIndex(to);
+        }
+    }
+    
+    /**
+     * Lists contents of a pathname on the server.
+     *
+     * @param  pathName     pathname
+     * @throws IOException
+     */
+    private void list(String pathName) throws IOException {
+        if (chunkStore == null)
+            callProcess("ls", "-l", getPath(pathName));
+        else if (isPathDirectory(pathName))
+            // ls would show the size of manifests rather than of the data
+            listTree(pathName, FtpTreeWalker.Format.LIST, false);
+        else
+            sendData(FtpTreeWalker.formatList(new File(getPath(pathName)).toPath(), chunkStore) + "\r\n");
+    }
+    
+    /**
+     * Lists contents of a directory on the server, without forking a process.
+     *
+     * @param  pathName     pathname of a directory
+     * @param  format       listing format
+     * @param  recursive    true to list subdirectories too
+     * @throws IOException
+     */
+    private void listTree(String pathName, FtpTreeWalker.Format format, boolean recursive) throws IOException {
+        Socket dataConnection = openDataConnection();
+        try {
+            Writer dout = new BufferedWriter(new OutputStreamWriter(dataConnection.getOutputStream()));
+            FtpTreeWalker.list(new File(getPath(pathName)).toPath(), getVirtualPath(pathName),
+                               format, recursive, getListFilter(), chunkStore, dout);
+            dout.flush();
+        } finally {
+            closeDataConnection(dataConnection);
+        }
+    }
+    
+    /**
+     * Returns the filter hiding pathnames the user may not read from
+     * listings.
+     *
+     * @return              filter, or null if every pathname may be listed
+     */
+    private FtpTreeWalker.Filter getListFilter() {
+        final FtpUser user = this.user;
+        if (user == null)
+            return null;
+        return new FtpTreeWalker.Filter() {
+            public boolean accept(String pathName) {
+                return user.hasPermission(pathName, 'r');
+            }
+        };
+    }
+    
+    /**
+     * Removes a directory and everything in it on the server.
+     *
+     * @param  pathName     pathname of a directory
+     * @throws IOException
+     */
+    private void rmtree(String pathName) throws IOException {
+        File dir = new File(getPath(pathName));
+        FtpQuotaLedger.Change change = quotaLedger != null ? quotaLedger.begin(dir) : null;
+        try {
+            FtpTreeWalker.delete(dir.toPath(), chunkStore);
+        } finally {
+            if (change != null)
+                change.commit();
+            refreshIndex(dir);
+        }
+    }
+    
+    /**
+     * Retrieves a file from the server.
+     *
+     * @param  pathName     pathname
+     * @throws IOException
+     */
+    private void retr(String pathName) throws IOException {
+        sendData(new File(getPath(pathName)));
+    }
+    
+    /**
+     * Stores a file onto the server.
+     *
+     * @param  pathName     pathname
+     * @throws IOException
+     */
+    private void stor(String pathName) throws IOException {
+        File file = getTargetFile(pathName);
+        try {
+            receiveData(file, false);
+        } finally {
+            refreshIndex(file);
+        }
+    }
+    
+    /**
+     * Appends to a file on the server, creating it if it does not exist.
+     *
+     * @param  pathName     pathname
+     * @throws IOException
+     */
+    private void appe(String pathName) throws IOException {
+        File file = getTargetFile(pathName);
+        try {
+            receiveData(file, true);
+        } finally {
+            refreshIndex(file);
+        }
+    }
+    
+    /**
+     * Returns the file to store a pathname to. In cluster mode, a directory
+     * only exists on the nodes that have files in it, so its parents are
+     * created on demand.
+     *
+     * @param  pathName     pathname
+     * @return              file
+     * @throws IOException
+     */
+    private File getTargetFile(String pathName) throws IOException {
+        File file = new File(getPath(pathName));
+        if (cluster != null)
+            file.getParentFile().mkdirs();
+        return file;
+    }
+    
+    /**
+     * Indexes a pathname again after a change to it, in cluster mode.
+     *
+     * @param  file         changed file
+     */
+    private void refreshIndex(File file) {
+        if (cluster != null)
+            cluster.getIndex().refresh(file);
+    }
+    
+    /**
+     * Returns true if a string is a decimal number in a given range, such as
+     * a field of PORT or EPRT.
+     *
+     * @param  s            string
+     * @param  min          minimum value
+     * @param  max          maximum value
+     * @return              true if the string is a number from min to max
+     */
+    private static boolean isNumber(String s, int min, int max) {
+        if (!s.matches("\\d{1,5}"))
+            return false;
+        int n = Integer.parseInt(s);
+        return n >= min && n <= max;
+    }
+    
+    /**
+     * Returns true if an address given by PORT or EPRT is the address of the
+     * client, which prevents the server from being used to connect to third
+     * parties (FTP bounce attack).
+     *
+     * @param  host         numeric address
+     * @return              true if the address is the client's address
+     */
+    private boolean isClientAddress(String host) {
+        try {
+            return InetAddress.getByName(host).equals(connection.getInetAddress());
+        } catch (UnknownHostException e) {
+            return false;
+        }
+    }
+    
+    /**
+     * Returns the node owning a pathname, if it is not this node.
+     *
+     * @param  pathName     pathname in FTP home path
+     * @return              owner node ID, or null if the pathname is served locally
+     * @throws IOException
+     */
+    private String getRemoteOwner(String pathName) throws IOException {
+        if (cluster == null || isClusterLocal)
+            return null;
+        String owner = cluster.getOwner(getVirtualPath(pathName));
+        return owner.equals(cluster.getSelf()) ? null : owner;
+    }
+    
+    /**
+     * Returns the node holding an existing pathname, if it is not this node.
+     *
+     * Files stay where they were stored when nodes join or leave, so the
+     * owner may not have the pathname. The live nodes are then looked up in
+     * ring order, which starts with the owners before the last joins.
+     *
+     * @param  pathName     pathname in FTP home path
+     * @return              holder node ID, the owner node ID if no node has
+     *                      the pathname, or null if it is served locally
+     * @throws IOException
+     */
+    private String getRemoteHolder(String pathName) throws IOException {
+        if (cluster == null || isClusterLocal)
+            return null;
+        for (String node : cluster.getOwners(getVirtualPath(pathName))) {
+            if (node.equals(cluster.getSelf())) {
+                if (new File(getPath(pathName)).exists())
+                    return null;
+            } else if (getPeerFacts(node, pathName) != null) {
+                return node;
+            }
+        }
+        return getRemoteOwner(pathName);
+    }
+    
+    /**
+     * Returns the MLST facts of a pathname on the other nodes that have it.
+     * A pathname just stored through another node may not be in the index
+     * of its owner yet, so the owner is asked if no node has the pathname.
+     *
+     * @param  pathName     pathname in FTP home path
+     * @return              facts by node ID, empty if not clustered
+     * @throws IOException
+     */
+    private Map<String, String> getPeerFacts(String pathName) throws IOException {
+        Map<String, String> peerFacts = new TreeMap<String, String>();
+        if (cluster == null || isClusterLocal)
+            return peerFacts;
+        for (String node : cluster.getLiveNodes()) {
+            if (node.equals(cluster.getSelf()))
+                continue;
+            String facts = getPeerFacts(node, pathName);
+            if (facts != null)
+                peerFacts.put(node, facts);
+        }
+        String owner = getRemoteOwner(pathName);
+        if (peerFacts.isEmpty() && owner != null && isIndexed(owner, pathName)) {
+            String facts = askPeerFacts(owner, pathName);
+            if (facts != null)
+                peerFacts.put(owner, facts);
+        }
+        return peerFacts;
+    }
+    
+    /**
+     * Returns the MLST facts of a pathname on another node, from the index
+     * of the node if it is up to date, or else from the node.
+     *
+     * @param  node         node ID
+     * @param  pathName     pathname in FTP home path
+     * @return              facts, or null if the node does not have the
+     *                      pathname or is not available
+     * @throws IOException
+     */
+    private String getPeerFacts(String node, String pathName) throws IOException {
+        if (isIndexed(node, pathName))
+            return cluster.getIndex().getFacts(node, cluster.getIndex().getKey(new File(getPath(pathName))));
+        return askPeerFacts(node, pathName);
+    }
+    
+    /**
+     * Asks another node for the MLST facts of a pathname.
+     *
+     * @param  node         node ID
+     * @param  pathName     pathname in FTP home path
+     * @return              facts, or null if the node does not have the
+     *                      pathname or is not available
+     * @throws IOException
+     */
+    private String askPeerFacts(String node, String pathName) throws IOException {
+        try {
+            return getPeer(node).getFacts(getVirtualPath(pathName));
+        } catch (IOException e) {
+            log("Cluster error: " + e.getMessage());
+            closePeer(node);
+            return null;
+        }
+    }
+    
+    /**
+     * Returns true if a pathname can be looked up in the index of another
+     * node rather than on the node.
+     *
+     * @param  node         node ID
+     * @param  pathName     pathname
+     * @return              true if the pathname is in the FTP home path of
+     *                      the server and the index of the node is up to date
+     * @throws IOException
+     */
+    private boolean isIndexed(String node, String pathName) throws IOException {
+        return cluster.getIndex().getKey(new File(getPath(pathName))) != null && cluster.isIndexSynced(node);
+    }
+    
+    /**
+     * Returns true if a pathname is a directory on another node.
+     *
+     * @param  pathName     pathname in FTP home path
+     * @return              true if another node has the pathname as a directory
+     * @throws IOException
+     */
+    private boolean isDirectoryOnPeers(String pathName) throws IOException {
+        for (String facts : getPeerFacts(pathName).values())
+            if ("dir".equals(FtpTreeWalker.getFact(facts, "type")))
+                return true;
+        return false;
+    }
+    
+    /**
+     * Deletes a pathname on the other nodes, if they have it.
+     *
+     * @param  pathName     pathname in FTP home path
+     * @param  except       nodes to leave the pathname on
+     * @return              true if the pathname was deleted on any node
+     * @throws IOException
+     */
+    private boolean deleteOnPeers(String pathName, Collection<String> except) throws IOException {
+        if (cluster == null || isClusterLocal)
+            return false;
+        String virtualPath = getVirtualPath(pathName);
+        String owner = cluster.getOwner(virtualPath);
+        boolean isDeleted = false;
+        for (String node : cluster.getLiveNodes()) {
+            if (node.equals(cluster.getSelf()) || except.contains(node))
+                continue;
+            // The owner may have a pathname just stored before its index shows it
+            if (!node.equals(owner) && isIndexed(node, pathName) && getPeerFacts(node, pathName) == null)
+                continue;
+            try {
+                if (getPeer(node).command("DELE " + virtualPath).startsWith("2")) {
+                    isDeleted = true;
+                    cluster.syncIndex(node);
+                }
+            } catch (IOException e) {
+                log("Cluster error: " + e.getMessage());
+                closePeer(node);
+            }
+        }
+        return isDeleted;
+    }
+    
+    /**
+     * Deletes the copies of a pathname that was just stored on its owner,
+     * which other nodes may have from before the owner joined.
+     *
+     * @param  pathName     pathname in FTP home path
+     * @throws IOException
+     */
+    private void deleteStaleCopies(String pathName) throws IOException {
+        if (cluster == null || isClusterLocal)
+            return;
+        String owner = cluster.getOwner(getVirtualPath(pathName));
+        if (!owner.equals(cluster.getSelf()) && isPathWritable(pathName) && !isPathDirectory(pathName))
+            dele(pathName);
+        deleteOnPeers(pathName, Collections.singleton(owner));
     }
     
     /**
-     * Returns true if a pathname is accessible.
+     * Renames the old frName to a new pathname in cluster mode, on every
+     * node that has it. Files stay on their node, where lookups find them.
      *
-     * @param  pathName     pathname
-     * @return              true if the pathname is in FTP home path
+     * @param  pathName     new pathname
+     * @return              true if the pathname was renamed on every node
+     *                      that has it
      * @throws IOException
+     * @throws FtpQuotaLedger.QuotaExceededException
+     *                      if the quotas of the new pathname would be exceeded
      */
-    private boolean isPathAccessible(String pathName) throws IOException {
-        return getPath(pathName).startsWith(ftpHome);
+    private boolean rntoCluster(String pathName) throws IOException {
+        String from = getVirtualPath(frPath), to = getVirtualPath(pathName);
+        Map<String, String> peerFacts = getPeerFacts(frPath);
+        boolean isLocal = new File(getPath(frPath)).exists();
+        if (!isLocal && peerFacts.isEmpty())
+            return false;
+        boolean isDirectory = isLocal ? isPathDirectory(frPath)
+            : "dir".equals(FtpTreeWalker.getFact(peerFacts.values().iterator().next(), "type"));
+        
+        if (isLocal)
+            rnto(pathName);
+        boolean isRenamed = true;
+        for (String node : peerFacts.keySet()) {
+            try {
+                FtpClusterClient peer = getPeer(node);
+                if (!peer.command("RNFR " + from).startsWith("3") || !peer.command("RNTO " + to).startsWith("2"))
+                    isRenamed = false;
+                cluster.syncIndex(node);
+            } catch (IOException e) {
+                log("Cluster error: " + e.getMessage());
+                closePeer(node);
+                isRenamed = false;
+            }
+        }
+        
+        // A file renamed over another replaces the copies of the other
+        if (!isDirectory) {
+            if (!isLocal && isPathWritable(pathName) && !isPathDirectory(pathName))
+                dele(pathName);
+            deleteOnPeers(pathName, peerFacts.keySet());
+        }
+        return isRenamed;
     }
     
     /**
-     * Returns true if a pathname exists and is readable.
+     * Removes a directory in cluster mode, on every node that has it.
      *
-     * @param  pathName     pathname
-     * @return              true if the pathname exists and is readable
+     * @param  pathName     pathname of a directory
+     * @return              true if the directory was removed on every node
+     *                      that has it
      * @throws IOException
      */
-    private boolean isPathReadable(String pathName) throws IOException {
-        return new File(getPath(pathName)).exists() && new File(getPath(pathName)).canRead();
+    private boolean rmdCluster(String pathName) throws IOException {
+        boolean isFound = false, isRemoved = true;
+        if (isPathDirectory(pathName)) {
+            isFound = true;
+            isRemoved = new File(getPath(pathName)).delete();
+            refreshIndex(new File(getPath(pathName)));
+        }
+        for (Map.Entry<String, String> entry : getPeerFacts(pathName).entrySet()) {
+            if (!"dir".equals(FtpTreeWalker.getFact(entry.getValue(), "type")))
+                continue;
+            isFound = true;
+            try {
+                if (!getPeer(entry.getKey()).command("RMD " + getVirtualPath(pathName)).startsWith("2"))
+                    isRemoved = false;
+                cluster.syncIndex(entry.getKey());
+            } catch (IOException e) {
+                log("Cluster error: " + e.getMessage());
+                closePeer(entry.getKey());
+                isRemoved = false;
+            }
+        }
+        return isFound && isRemoved;
     }
     
     /**
-     * Returns true if a pathname exists and is writable.
+     * Lists a pathname in cluster mode, and sends the replies. The files of
+     * a directory are spread over the nodes, so the entries of all nodes are
+     * merged. Like FtpTreeWalker, a recursive listing is sent directory by
+     * directory.
      *
      * @param  pathName     pathname
-     * @return              true if the pathname exists and is writable
+     * @param  format       listing format
+     * @param  recursive    true to list subdirectories too
      * @throws IOException
      */
-    private boolean isPathWritable(String pathName) throws IOException {
-        return new File(getPath(pathName)).exists() && new File(getPath(pathName)).canWrite();
+    private void listCluster(String pathName, FtpTreeWalker.Format format, boolean recursive) throws IOException {
+        String facts = null;
+        if (isPathAccessible(pathName) && isPathReadable(pathName))
+            facts = FtpTreeWalker.formatFacts(new File(getPath(pathName)).toPath(), chunkStore);
+        Collection<String> peerFacts = isPathAccessible(pathName) ? getPeerFacts(pathName).values()
+            : Collections.<String>emptySet();
+        boolean isDirectory = false;
+        for (String nodeFacts : peerFacts) {
+            if (facts == null)
+                facts = nodeFacts;
+            if ("dir".equals(FtpTreeWalker.getFact(nodeFacts, "type")))
+                isDirectory = true;
+        }
+        if (facts == null) {
+            sendResponse(550, "Requested action not taken. File unavailable.");
+            return;
+        }
+        isDirectory |= "dir".equals(FtpTreeWalker.getFact(facts, "type"));
+        if (!isDirectory && format == FtpTreeWalker.Format.MLSD) {
+            sendResponse(501, "Not a directory.");
+            return;
+        }
+        
+        sendResponse(150, "Here comes the directory listing.");
+        Socket dataConnection;
+        try {
+            dataConnection = openDataConnection();
+        } catch (IOException e) {
+            sendTransferError(e, 451, "Requested action aborted. Local error in processing.");
+            return;
+        }
+        try {
+            Writer dout = new BufferedWriter(new OutputStreamWriter(dataConnection.getOutputStream()));
+            String virtualPath = getVirtualPath(pathName);
+            if (isDirectory)
+                listMerged(virtualPath, format == FtpTreeWalker.Format.LIST ? virtualPath : "",
+                           format, recursive, dout);
+            else
+                dout.write(FtpTreeWalker.formatList(facts, new File(virtualPath).getName()) + "\r\n");
+            dout.flush();
+            sendResponse(226, "Directory send OK.");
+        } catch (IOException e) {
+            sendTransferError(e, 451, "Requested action aborted. Local error in processing.");
+        } finally {
+            closeDataConnection(dataConnection);
+        }
     }
     
     /**
-     * Deletes a pathname on the server.
+     * Writes the merged entries of a directory on all nodes, then those of
+     * its subdirectories if recursive. The entries of other nodes are taken
+     * from their indexes, or listed by the nodes whose indexes are not up
+     * to date.
      *
-     * @param   pathName     pathname
-     * @throws  IOException
+     * @param  virtualPath  absolute client-side pathname of the directory
+     * @param  name         name of the directory in the listing
+     * @param  format       listing format
+     * @param  recursive    true to list subdirectories too
+     * @param  out          where to write the listing
+     * @throws IOException
      */
-    private void dele(String pathName) throws IOException {
-        new File(getPath(pathName)).delete();
+    private void listMerged(String virtualPath, String name, FtpTreeWalker.Format format, boolean recursive,
+                            Writer out) throws IOException {
+        // Facts by entry name; entries of this node come first
+        Map<String, String> entries = new TreeMap<String, String>();
+        List<String> lines = new ArrayList<String>();
+        if (isPathDirectory(virtualPath)) {
+            StringWriter listing = new StringWriter();
+            FtpTreeWalker.list(new File(getPath(virtualPath)).toPath(), virtualPath, FtpTreeWalker.Format.MLSD,
+                               false, getListFilter(), chunkStore, listing);
+            lines.addAll(Arrays.asList(listing.toString().split("\r\n")));
+        }
+        String key = cluster.getIndex().getKey(new File(getPath(virtualPath)));
+        FtpTreeWalker.Filter filter = getListFilter();
+        for (String node : cluster.getLiveNodes()) {
+            if (node.equals(cluster.getSelf()))
+                continue;
+            if (key != null && cluster.isIndexSynced(node)) {
+                for (Map.Entry<String, String> entry : cluster.getIndex().getChildren(node, key).entrySet()) {
+                    String childPath = virtualPath.endsWith("/") ? virtualPath + entry.getKey()
+                        : virtualPath + "/" + entry.getKey();
+                    if (filter == null || filter.accept(childPath))
+                        lines.add(entry.getValue() + " " + entry.getKey());
+                }
+                continue;
+            }
+            try {
+                List<String> nodeLines = getPeer(node).list("MLSD " + virtualPath);
+                if (nodeLines != null)
+                    lines.addAll(nodeLines);
+            } catch (IOException e) {
+                log("Cluster error: " + e.getMessage());
+                closePeer(node);
+            }
+        }
+        for (String line : lines) {
+            int space = line.indexOf(' ');
+            if (space > 0 && !entries.containsKey(line.substring(space + 1)))
+                entries.put(line.substring(space + 1), line.substring(0, space));
+        }
+        
+        if (format == FtpTreeWalker.Format.LIST && recursive)
+            out.write(name + ":\r\n");
+        for (Map.Entry<String, String> entry : entries.entrySet()) {
+            String childName = name.endsWith("/") ? name + entry.getKey()
+                : name.isEmpty() ? entry.getKey() : name + "/" + entry.getKey();
+            if (format == FtpTreeWalker.Format.LIST)
+                out.write(FtpTreeWalker.formatList(entry.getValue(), entry.getKey()) + "\r\n");
+            else
+                out.write(entry.getValue() + " " + childName + "\r\n");
+        }
+        if (format == FtpTreeWalker.Format.LIST && recursive)
+            out.write("\r\n");
+        if (!recursive)
+            return;
+        for (Map.Entry<String, String> entry : entries.entrySet()) {
+            if (!"dir".equals(FtpTreeWalker.getFact(entry.getValue(), "type")))
+                continue;
+            String childName = name.endsWith("/") ? name + entry.getKey()
+                : name.isEmpty() ? entry.getKey() : name + "/" + entry.getKey();
+            String childPath = virtualPath.endsWith("/") ? virtualPath + entry.getKey()
+                : virtualPath + "/" + entry.getKey();
+            listMerged(childPath, childName, format, true, out);
+        }
     }
     
     /**
-     * Renames the old frName to a new pathname on the server.
+     * Returns a connection to another node, logged in as the user. The
+     * connection is kept for later requests of the session.
      *
-     * @param  pathName     new pathname
+     * @param  node         node ID
+     * @return              connection to the node
      * @throws IOException
      */
-    private void rnto(String pathName) throws IOException {
-        new File(getPath(frPath)).renameTo(new File(getPath(pathName)));
+    private FtpClusterClient getPeer(String node) throws IOException {
+        FtpClusterClient client = peers.get(node);
+        if (client != null && !client.isUsable()) {
+            client.close();
+            client = null;
+        }
+        if (client == null) {
+            client = new FtpClusterClient(node, userName, password, cluster, tls, (int) dataTimeout);
+            peers.put(node, client);
+        }
+        return client;
     }
     
     /**
-     * Lists contents of the current working directory on the server.
+     * Closes the connection to another node, e.g. after an error on it.
      *
-     * @throws IOException
+     * @param  node         node ID
      */
-    private void list() throws IOException {
-        callProcess("ls", "-l", getPath(workingDir));
+    private void closePeer(String node) {
+        FtpClusterClient client = peers.remove(node);
+        if (client != null)
+            client.close();
     }
     
     /**
-     * Lists contents of a pathname on the server.
+     * Closes the connections to all other nodes.
+     */
+    private void closePeers() {
+        for (FtpClusterClient client : peers.values())
+            client.close();
+        peers.clear();
+    }
+    
+    /**
+     * Forwards a request without data transfer to the owner node, and relays
+     * its reply.
      *
-     * @param  pathName     pathname
+     * @param  owner        owner node ID
+     * @param  request      request string with client-side absolute pathname
      * @throws IOException
      */
-    private void list(String pathName) throws IOException {
-        callProcess("ls", "-l", getPath(pathName));
+    private void proxyCommand(String owner, String request) throws IOException {
+        String reply;
+        try {
+            reply = getPeer(owner).command(request);
+        } catch (IOException e) {
+            log("Cluster error: " + e.getMessage());
+            closePeer(owner);
+            sendResponse(421, "Owner node " + owner + " not available.");
+            return;
+        }
+        sendResponse(Integer.parseInt(reply.substring(0, 3)), reply.substring(4));
     }
     
     /**
-     * Retrieves a file from the server.
+     * Forwards a RETR, STOR or APPE request to the owner node, and relays the
+     * data between the client and the owner.
      *
+     * @param  owner        owner node ID
+     * @param  verb         "RETR", "STOR" or "APPE"
      * @param  pathName     pathname
+     * @return              true if the transfer completed
      * @throws IOException
      */
-    private void retr(String pathName) throws IOException {
-        sendData(new File(getPath(pathName)));
+    private boolean proxyTransfer(String owner, String verb, String pathName) throws IOException {
+        FtpClusterClient client;
+        Socket ownerData;
+        String reply;
+        try {
+            client = getPeer(owner);
+            ownerData = client.openPassive();
+        } catch (IOException e) {
+            log("Cluster error: " + e.getMessage());
+            closePeer(owner);
+            sendResponse(421, "Owner node " + owner + " not available.");
+            return false;
+        }
+        try {
+            try {
+                reply = client.startTransfer(ownerData, verb + " " + getVirtualPath(pathName));
+                if (!reply.startsWith("1")) {
+                    sendResponse(550, "Requested action not taken. File unavailable.");
+                    return false;
+                }
+                sendResponse(150, "Opening BINARY mode data connection for " + pathName + ".");
+                Socket dataConnection = openDataConnection();
+                try {
+                    if (verb.equals("RETR"))
+                        copy(ownerData.getInputStream(), dataConnection.getOutputStream());
+                    else
+                        copy(dataConnection.getInputStream(), ownerData.getOutputStream());
+                } finally {
+                    closeDataConnection(dataConnection);
+                }
+            } finally {
+                ownerData.close();
+            }
+            reply = client.readReply();
+            if (!verb.equals("RETR"))
+                cluster.syncIndex(owner);
+        } catch (IOException e) {
+            // The state of the owner connection is unknown after an error
+            closePeer(owner);
+            sendTransferError(e, 426, "Connection closed; transfer aborted.");
+            return false;
+        }
+        if (reply.startsWith("2")) {
+            sendResponse(226, "Transfer complete.");
+            return true;
+        } else if (reply.startsWith("552")) {
+            sendResponse(552, reply.substring(4));
+        } else {
+            sendResponse(426, "Connection closed; transfer aborted.");
+        }
+        return false;
     }
     
     /**
-     * Stores a file onto the server.
+     * Copies a data stream to another, recording activity for timeouts.
      *
-     * @param  pathName     pathname
+     * @param  in           source stream
+     * @param  out          destination stream
      * @throws IOException
      */
-    private void stor(String pathName) throws IOException {
-        receiveData(new File(getPath(pathName)));
+    private void copy(InputStream in, OutputStream out) throws IOException {
+        byte[] buffer = new byte[8192];
+        int n;
+        while ((n = in.read(buffer)) != -1) {
+            out.write(buffer, 0, n);
+            lastActivity = System.currentTimeMillis();
+        }
+        out.flush();
     }
     
     /**
@@ -305,19 +1520,102 @@ public class FtpServerConnection implements Runnable {
      */
     private void handleRequest(String request) throws IOException {
         String command[] = request.split("\\s+");
+        switch (command[0]) {
+        case "USER": // USER <SP> <username> <CRLF>
+        case "PASS": // PASS <SP> <password> <CRLF>
+        case "AUTH": // AUTH <SP> <mechanism-name> <CRLF>
+        case "PBSZ": // PBSZ <SP> <num> <CRLF>
+        case "PROT": // PROT <SP> <prot-code> <CRLF>
+        case "SYST": // SYST <CRLF>
+        case "FEAT": // FEAT <CRLF>
+        case "NOOP": // NOOP <CRLF>
+        case "QUIT": // QUIT <CRLF>
+            break;
+        default:
+            if (!isLoggedIn()) {
+                sendResponse(530, "Please login with USER and PASS.");
+                return;
+            }
+        }
+        
         switch (command[0]) {
         case "USER": { // USER <SP> <username> <CRLF>
+            userName = command.length > 1 ? command[1] : "";
+            user = null;
+            closePeers();
             sendResponse(331, "Please specify the password.");
             break;
         }
         case "PASS": { // PASS <SP> <password> <CRLF>
-            sendResponse(230, "Login successful.");
+            if (userStore == null) {
+                if (cluster != null)
+                    password = request.length() > 5 ? request.substring(5) : "";
+                sendResponse(230, "Login successful.");
+            } else if (userName == null) {
+                sendResponse(503, "Login with USER first.");
+            } else {
+                String password = request.length() > 5 ? request.substring(5) : "";
+                if (cluster != null)
+                    this.password = password;
+                FtpUser found = userStore.lookup(userName);
+                if (found != null && userStore.bind(userName, password)) {
+                    user = found;
+                    ftpHome = found.getHome();
+                    workingDir = "/";
+                    sendResponse(230, "Login successful.");
+                } else {
+                    sendResponse(530, "Login incorrect.");
+                }
+            }
             break;
         }
         case "SYST": { // SYST <CRLF>
             sendResponse(215, "UNIX Type: L8");
             break;
         }
+        case "AUTH": { // AUTH <SP> <mechanism-name> <CRLF>
+            if (tls == null) {
+                sendResponse(502, "TLS not configured.");
+            } else if (isSecure) {
+                sendResponse(503, "Already using TLS.");
+            } else if (command.length == 1) {
+                sendResponse(501, "Syntax error in parameters or arguments.");
+            } else if (!command[1].equalsIgnoreCase("TLS") && !command[1].equalsIgnoreCase("SSL")) {
+                sendResponse(504, "Unknown AUTH type.");
+            } else if (!isTlsLoaded()) {
+                sendResponse(431, "Need some unavailable resource to process security.");
+            } else {
+                sendResponse(234, "Proceed with negotiation.");
+                flushResponses();
+                startTls();
+            }
+            break;
+        }
+        case "PBSZ": { // PBSZ <SP> <num> <CRLF>
+            if (!isSecure) {
+                sendResponse(503, "PBSZ needs a secure connection.");
+            } else {
+                isPbszSet = true;
+                sendResponse(200, "PBSZ set to 0.");
+            }
+            break;
+        }
+        case "PROT": { // PROT <SP> <prot-code> <CRLF>
+            if (!isSecure || !isPbszSet) {
+                sendResponse(503, "PROT needs a secure connection and PBSZ.");
+            } else if (command.length == 1) {
+                sendResponse(501, "Syntax error in parameters or arguments.");
+            } else if (command[1].equals("P")) {
+                isDataProtected = true;
+                sendResponse(200, "PROT now Private.");
+            } else if (command[1].equals("C")) {
+                isDataProtected = false;
+                sendResponse(200, "PROT now Clear.");
+            } else {
+                sendResponse(536, "PROT level not supported.");
+            }
+            break;
+        }
         case "MODE": { // MODE <SP> <mode-code> <CRLF>
             sendResponse(200, "Mode set to Stream.");
             break;
@@ -334,37 +1632,78 @@ public class FtpServerConnection implements Runnable {
             break;
         }
         case "PORT": { // PORT <SP> <host-port> <CRLF>
-            isPassive = false;
-            String args[] = command[1].split(",");
-            dataHost = args[0] + "." + args[1] + "." + args[2] + "." + args[3];
-            dataPort = Integer.parseInt(args[4]) * 256 + Integer.parseInt(args[5]);
-            sendResponse(200, "PORT command successful.");
+            String args[] = command.length > 1 ? command[1].split(",") : new String[0];
+            boolean isValid = args.length == 6;
+            for (int i = 0; isValid && i < args.length; i++)
+                isValid = isNumber(args[i], 0, 255);
+            if (isEpsvAll) {
+                sendResponse(501, "PORT not allowed after EPSV ALL.");
+            } else if (!isValid || args[4].equals("0") && args[5].equals("0")) {
+                sendResponse(501, "Syntax error in parameters or arguments.");
+            } else if (!isClientAddress(args[0] + "." + args[1] + "." + args[2] + "." + args[3])) {
+                sendResponse(500, "Illegal PORT command.");
+            } else {
+                isPassive = false;
+                dataHost = args[0] + "." + args[1] + "." + args[2] + "." + args[3];
+                dataPort = Integer.parseInt(args[4]) * 256 + Integer.parseInt(args[5]);
+                sendResponse(200, "PORT command successful.");
+            }
             break;
         }
-        case "EPRT": { // EPRT <SP> <D> <net-port> <D> <net-addr> <D> <tcp-port> <D> <CRLF>
-            isPassive = false;
-            String args[] = command[1].split("\\|");
-            dataHost = args[2];
-            dataPort = Integer.parseInt(args[3]);
-            sendResponse(200, "EPRT command successful.");
+        case "EPRT": { // EPRT <SP> <D> <net-prt> <D> <net-addr> <D> <tcp-port> <D> <CRLF>
+            String args[] = command.length > 1 && command[1].length() > 1
+                ? command[1].split(Pattern.quote(command[1].substring(0, 1)), -1)
+                : new String[0];
+            if (isEpsvAll) {
+                sendResponse(501, "EPRT not allowed after EPSV ALL.");
+            } else if (args.length != 5 || !isNumber(args[3], 1, 65535)) {
+                sendResponse(501, "Syntax error in parameters or arguments.");
+            } else if (!args[1].equals("1") && !args[1].equals("2")) {
+                sendResponse(522, "Network protocol not supported, use (1,2)");
+            } else if (!isClientAddress(args[2])
+                       || (args[1].equals("1") != (InetAddress.getByName(args[2]) instanceof Inet4Address))) {
+                sendResponse(500, "Illegal EPRT command.");
+            } else {
+                isPassive = false;
+                dataHost = args[2];
+                dataPort = Integer.parseInt(args[3]);
+                sendResponse(200, "EPRT command successful.");
+            }
             break;
         }
         case "PASV": { // PASV <CRLF>
-            isPassive = true;
-            dataSocket = new ServerSocket(0);
-            String localHost = dataSocket.getInetAddress().getHostAddress();
-            int localPort = dataSocket.getLocalPort();
-            String addr[] = localHost.split("\\.");
-            sendResponse(227, "Entering Passive Mode ("
-                         + addr[0] + "," + addr[1] + "," + addr[2] + "," + addr[3] + ","
-                         + localPort / 256 + "," + localPort % 256 + ").");
+            InetAddress advertised = passiveAddress != null ? passiveAddress : connection.getLocalAddress();
+            if (isEpsvAll) {
+                sendResponse(501, "PASV not allowed after EPSV ALL.");
+            } else if (!(advertised instanceof Inet4Address)) {
+                sendResponse(425, "PASV not available on IPv6, use EPSV.");
+            } else {
+                isPassive = true;
+                closeQuietly(dataSocket);
+                dataSocket = new ServerSocket(0, 1, connection.getLocalAddress());
+                int localPort = dataSocket.getLocalPort();
+                byte addr[] = advertised.getAddress();
+                sendResponse(227, "Entering Passive Mode ("
+                             + (addr[0] & 0xff) + "," + (addr[1] & 0xff) + ","
+                             + (addr[2] & 0xff) + "," + (addr[3] & 0xff) + ","
+                             + localPort / 256 + "," + localPort % 256 + ").");
+            }
             break;
         }
-        case "EPSV": { // EPSV <CRLF>
-            isPassive = true;
-            dataSocket = new ServerSocket(0);
-            int localPort = dataSocket.getLocalPort();
-            sendResponse(229, "Entering Extended Passive Mode (|||" + localPort + "|).");
+        case "EPSV": { // EPSV [<SP> <net-prt> | <SP> ALL] <CRLF>
+            String family = connection.getLocalAddress() instanceof Inet4Address ? "1" : "2";
+            if (command.length > 1 && command[1].equalsIgnoreCase("ALL")) {
+                isEpsvAll = true;
+                sendResponse(200, "EPSV ALL command successful.");
+            } else if (command.length > 1 && !command[1].equals(family)) {
+                sendResponse(522, "Network protocol not supported, use (" + family + ")");
+            } else {
+                isPassive = true;
+                closeQuietly(dataSocket);
+                dataSocket = new ServerSocket(0, 1, connection.getLocalAddress());
+                int localPort = dataSocket.getLocalPort();
+                sendResponse(229, "Entering Extended Passive Mode (|||" + localPort + "|).");
+            }
             break;
         }
         case "CWD": { // CWD <SP> <pathname> <CRLF>
@@ -372,7 +1711,7 @@ public class FtpServerConnection implements Runnable {
                 sendResponse(501, "Syntax error in parameters or arguments.");
             } else {
                 String pathName = command[1];
-                if (isPathAccessible(pathName) && isPathReadable(pathName)) {
+                if (isPathAccessible(pathName) && (isPathReadable(pathName) || isDirectoryOnPeers(pathName))) {
                     if (pathName.startsWith("/"))
                         workingDir = pathName;
                     else
@@ -389,7 +1728,10 @@ public class FtpServerConnection implements Runnable {
                 sendResponse(501, "Syntax error in parameters or arguments.");
             } else {
                 String pathName = command[1];
-                if (isPathAccessible(pathName) && isPathReadable(pathName)) {
+                String owner = isPathAccessible(pathName) ? getRemoteHolder(pathName) : null;
+                if (owner != null) {
+                    proxyCommand(owner, "SIZE " + getVirtualPath(pathName));
+                } else if (isPathAccessible(pathName) && isPathReadable(pathName)) {
                     sendResponse(213, "" + getSize(pathName));
                 } else {
                     sendResponse(550, "Could not get file size.");
@@ -402,12 +1744,20 @@ public class FtpServerConnection implements Runnable {
                 sendResponse(501, "Syntax error in parameters or arguments.");
             } else {
                 String pathName = command[1];
-                if (isPathAccessible(pathName) && isPathWritable(pathName)) {
-                    dele(pathName);
+                boolean isDeleted = false;
+                if (isPathAccessible(pathName, 'w')) {
+                    // Membership changes may leave copies on several nodes
+                    if (isPathWritable(pathName)) {
+                        dele(pathName);
+                        isDeleted = true;
+                    }
+                    if (deleteOnPeers(pathName, Collections.<String>emptySet()))
+                        isDeleted = true;
+                }
+                if (isDeleted)
                     sendResponse(250, "Deleted OK.");
-                } else {
+                else
                     sendResponse(550, "Deletion failed.");
-                }
             }
             break;
         }
@@ -416,7 +1766,8 @@ public class FtpServerConnection implements Runnable {
                 sendResponse(501, "Syntax error in parameters or arguments.");
             } else {
                 String pathName = command[1];
-                if (isPathAccessible(pathName) && isPathWritable(pathName)) {
+                if (isPathAccessible(pathName, 'w')
+                    && (isPathWritable(pathName) || !getPeerFacts(pathName).isEmpty())) {
                     frPath = pathName;
                     sendResponse(350, "Requested file action pending further information.");
                 } else {
@@ -430,42 +1781,221 @@ public class FtpServerConnection implements Runnable {
                 sendResponse(501, "Syntax error in parameters or arguments.");
             } else {
                 String pathName = command[1];
-                if (frPath != null) {
-                    rnto(pathName);
-                    frPath = null;
-                    sendResponse(250, "Renamed OK.");
+                if (frPath != null && isPathAccessible(pathName, 'w')) {
+                    try {
+                        if (cluster == null || isClusterLocal) {
+                            rnto(pathName);
+                            sendResponse(250, "Renamed OK.");
+                        } else if (rntoCluster(pathName)) {
+                            sendResponse(250, "Renamed OK.");
+                        } else {
+                            sendResponse(550, "Rename failed.");
+                        }
+                    } catch (FtpQuotaLedger.QuotaExceededException e) {
+                        sendResponse(552, "Requested file action aborted. Exceeded storage allocation.");
+                    } finally {
+                        frPath = null;
+                    }
                 } else {
                     sendResponse(550, "Rename failed.");
                 }
             }
             break;
         }
-        case "LIST": { // LIST [<SP> <pathname>] <CRLF>
-            if (command.length == 1) {
+        case "LIST": { // LIST [<SP> -R] [<SP> <pathname>] <CRLF>
+            String pathName = getPathArgument(command);
+            if (pathName == null)
+                pathName = workingDir;
+            if (cluster != null && !isClusterLocal) {
+                listCluster(pathName, FtpTreeWalker.Format.LIST, getOptions(command).contains("R"));
+            } else if (isPathAccessible(pathName) && isPathReadable(pathName)) {
                 sendResponse(150, "Here comes the directory listing.");
-                list();
-                sendResponse(226, "Directory send OK.");
+                try {
+                    if (getOptions(command).contains("R") && isPathDirectory(pathName))
+                        listTree(pathName, FtpTreeWalker.Format.LIST, true);
+                    else
+                        list(pathName);
+                    sendResponse(226, "Directory send OK.");
+                } catch (IOException e) {
+                    sendTransferError(e, 451, "Requested action aborted. Local error in processing.");
+                }
             } else {
-                String pathName = command[1];
-                if (isPathAccessible(pathName) && isPathReadable(pathName)) {
-                    sendResponse(150, "Here comes the directory listing.");
-                    list(pathName);
+                sendResponse(550, "Requested action not taken. File unavailable.");
+            }
+            break;
+        }
+        case "MLSD": { // MLSD [<SP> -R] [<SP> <pathname>] <CRLF>
+            String pathName = getPathArgument(command);
+            if (pathName == null)
+                pathName = workingDir;
+            if (cluster != null && !isClusterLocal) {
+                listCluster(pathName, FtpTreeWalker.Format.MLSD, getOptions(command).contains("R"));
+            } else if (!isPathAccessible(pathName) || !isPathReadable(pathName)) {
+                sendResponse(550, "Requested action not taken. File unavailable.");
+            } else if (!isPathDirectory(pathName)) {
+                sendResponse(501, "Not a directory.");
+            } else {
+                sendResponse(150, "Here comes the directory listing.");
+                try {
+                    listTree(pathName, FtpTreeWalker.Format.MLSD, getOptions(command).contains("R"));
                     sendResponse(226, "Directory send OK.");
+                } catch (IOException e) {
+                    sendTransferError(e, 451, "Requested action aborted. Local error in processing.");
+                }
+            }
+            break;
+        }
+        case "MLST": { // MLST [<SP> <pathname>] <CRLF>
+            String pathName = command.length > 1 ? command[1] : workingDir;
+            String facts = null;
+            if (isPathAccessible(pathName) && isPathReadable(pathName))
+                facts = FtpTreeWalker.formatFacts(new File(getPath(pathName)).toPath(), chunkStore);
+            else if (isPathAccessible(pathName))
+                for (String nodeFacts : getPeerFacts(pathName).values())
+                    facts = nodeFacts;
+            if (facts != null) {
+                sendResponse(250, "Listing " + getVirtualPath(pathName),
+                             facts + " " + getVirtualPath(pathName), "End");
+            } else {
+                sendResponse(550, "Requested action not taken. File unavailable.");
+            }
+            break;
+        }
+        case "STAT": { // STAT [<SP> -R] [<SP> <pathname>] <CRLF>
+            String pathName = getPathArgument(command);
+            if (pathName == null) {
+                sendResponse(211, "FTP server status:",
+                             "Connected to " + connection.getInetAddress().getHostAddress() + "\r\n"
+                             + (user != null ? "Logged in as " + user.getName() : "Logged in") + "\r\n"
+                             + "TYPE: BINARY" + "\r\n"
+                             + (isSecure ? "Control connection is protected by TLS" : "Control connection is plain text"),
+                             "End of status.");
+            } else if (isPathAccessible(pathName) && isPathReadable(pathName) && isPathDirectory(pathName)) {
+                // The listing is sent as it is read; once started, a failure
+                // can only be reported in the last line of the reply
+                pout.print("213-Status follows:\r\n");
+                Writer listing = getReplyLineWriter();
+                try {
+                    FtpTreeWalker.list(new File(getPath(pathName)).toPath(), getVirtualPath(pathName),
+                                       FtpTreeWalker.Format.LIST, getOptions(command).contains("R"),
+                                       getListFilter(), chunkStore, listing);
+                    listing.close();
+                    pout.print("213 End of status.\r\n");
+                } catch (IOException e) {
+                    log("Listing failed: " + e.getMessage());
+                    listing.close();
+                    pout.print("213 End of status, incomplete. Local error in processing.\r\n");
+                }
+            } else {
+                sendResponse(550, "Requested action not taken. File unavailable.");
+            }
+            break;
+        }
+        case "RMD": { // RMD <SP> <pathname> <CRLF>
+            if (command.length == 1) {
+                sendResponse(501, "Syntax error in parameters or arguments.");
+            } else {
+                String pathName = command[1];
+                if (cluster != null && !isClusterLocal) {
+                    if (isPathAccessible(pathName, 'w') && !getVirtualPath(pathName).equals("/") && rmdCluster(pathName))
+                        sendResponse(250, "Remove directory operation successful.");
+                    else
+                        sendResponse(550, "Remove directory operation failed.");
+                } else if (isPathAccessible(pathName, 'w') && isPathDirectory(pathName)
+                    && !getVirtualPath(pathName).equals("/") && new File(getPath(pathName)).delete()) {
+                    refreshIndex(new File(getPath(pathName)));
+                    sendResponse(250, "Remove directory operation successful.");
                 } else {
-                    sendResponse(550, "Requested action not taken. File unavailable.");
+                    sendResponse(550, "Remove directory operation failed.");
+                }
+            }
+            break;
+        }
+        case "SITE": { // SITE <SP> <string> <CRLF>
+            if (command.length < 2) {
+                sendResponse(501, "Syntax error in parameters or arguments.");
+            } else if (command[1].equalsIgnoreCase("CLUSTER")) { // SITE CLUSTER [<SP> NONCE | LOCAL <SP> <hmac>]
+                if (cluster == null) {
+                    sendResponse(502, "Cluster mode not enabled.");
+                } else if (command.length > 2 && command[2].equalsIgnoreCase("NONCE")) {
+                    byte[] nonce = new byte[16];
+                    random.nextBytes(nonce);
+                    clusterNonce = FtpPasswordHasher.toHex(nonce);
+                    sendResponse(200, clusterNonce);
+                } else if (command.length > 2 && command[2].equalsIgnoreCase("LOCAL")) {
+                    // Only other nodes, knowing the cluster secret, may bypass forwarding
+                    String nonce = clusterNonce;
+                    clusterNonce = null;
+                    if (nonce != null && command.length > 3 && cluster.verify("local " + nonce, command[3])) {
+                        isClusterLocal = true;
+                        sendResponse(200, "Serving requests locally.");
+                    } else {
+                        sendResponse(550, "Permission denied.");
+                    }
+                } else {
+                    StringBuilder nodes = new StringBuilder();
+                    for (String node : cluster.getLiveNodes())
+                        nodes.append(node).append(node.equals(cluster.getSelf()) ? " (self)" : "").append("\r\n");
+                    sendResponse(211, "Cluster members:", nodes.toString(), "End");
+                }
+            } else if (command[1].equalsIgnoreCase("RELOAD")) { // SITE RELOAD
+                if (user == null || !user.hasPermission("/", 'a')) {
+                    sendResponse(550, "Permission denied.");
+                } else {
+                    try {
+                        FtpServer.reload();
+                        sendResponse(200, "Configuration reloaded.");
+                    } catch (IOException e) {
+                        sendResponse(451, "Reload failed: " + e.getMessage());
+                    }
+                }
+            } else if (command[1].equalsIgnoreCase("RMTREE")) { // SITE RMTREE <SP> <pathname>
+                if (command.length < 3) {
+                    sendResponse(501, "Syntax error in parameters or arguments.");
+                } else {
+                    String pathName = command[2];
+                    if (isPathAccessible(pathName, 'w') && isPathDirectory(pathName)
+                        && !getVirtualPath(pathName).equals("/")
+                        && (user == null || user.hasTreePermission(getVirtualPath(pathName), 'w'))) {
+                        try {
+                            rmtree(pathName);
+                            sendResponse(250, "Remove directory tree operation successful.");
+                        } catch (IOException e) {
+                            log("Tree removal failed: " + e.getMessage());
+                            sendResponse(550, "Remove directory tree operation failed; some entries were not removed.");
+                        }
+                    } else {
+                        sendResponse(550, "Remove directory tree operation failed.");
+                    }
                 }
+            } else {
+                sendResponse(504, "Unknown SITE command.");
             }
             break;
         }
+        case "FEAT": { // FEAT <CRLF>
+            sendResponse(211, "Features:",
+                         (tls != null ? "AUTH TLS\r\nPBSZ\r\nPROT\r\n" : "")
+                         + "EPRT\r\nEPSV\r\nMLST type*;size*;modify*;perm*;\r\nSIZE",
+                         "End");
+            break;
+        }
         case "RETR": { // RETR <SP> <pathname> <CRLF>
             if (command.length == 1) {
                 sendResponse(501, "Syntax error in parameters or arguments.");
             } else {
                 String pathName = command[1];
-                if (isPathAccessible(pathName) && isPathReadable(pathName)) {
+                String owner = isPathAccessible(pathName) ? getRemoteHolder(pathName) : null;
+                if (owner != null) {
+                    proxyTransfer(owner, "RETR", pathName);
+                } else if (isPathAccessible(pathName) && isPathReadable(pathName)) {
                     sendResponse(150, "Opening BINARY mode data connection for " + pathName + " (" + getSize(pathName) + " bytes).");
-                    retr(pathName);
-                    sendResponse(226, "Transfer complete.");
+                    try {
+                        retr(pathName);
+                        sendResponse(226, "Transfer complete.");
+                    } catch (IOException e) {
+                        sendTransferError(e, 426, "Connection closed; transfer aborted.");
+                    }
                 } else {
                     sendResponse(550, "Requested action not taken. File unavailable.");
                 }
@@ -477,10 +2007,46 @@ public class FtpServerConnection implements Runnable {
                 sendResponse(501, "Syntax error in parameters or arguments.");
             } else {
                 String pathName = command[1];
-                if (isPathAccessible(pathName)) {
+                String owner = isPathAccessible(pathName, 'w') ? getRemoteOwner(pathName) : null;
+                if (owner != null) {
+                    if (proxyTransfer(owner, "STOR", pathName))
+                        deleteStaleCopies(pathName);
+                } else if (isPathAccessible(pathName, 'w')) {
+                    sendResponse(150,  "Opening BINARY mode data connection for " + pathName + ".");
+                    try {
+                        stor(pathName);
+                        deleteStaleCopies(pathName);
+                        sendResponse(226, "Transfer complete.");
+                    } catch (FtpQuotaLedger.QuotaExceededException e) {
+                        sendResponse(552, "Requested file action aborted. Exceeded storage allocation.");
+                    } catch (IOException e) {
+                        sendTransferError(e, 426, "Connection closed; transfer aborted.");
+                    }
+                } else {
+                    sendResponse(450, "Requested action not taken.");
+                }
+            }
+            break;
+        }
+        case "APPE": { // APPE <SP> <pathname> <CRLF>
+            if (command.length == 1) {
+                sendResponse(501, "Syntax error in parameters or arguments.");
+            } else {
+                String pathName = command[1];
+                // Appends where the file is, which may not be its owner
+                String owner = isPathAccessible(pathName, 'w') ? getRemoteHolder(pathName) : null;
+                if (owner != null) {
+                    proxyTransfer(owner, "APPE", pathName);
+                } else if (isPathAccessible(pathName, 'w') && !isPathDirectory(pathName)) {
                     sendResponse(150,  "Opening BINARY mode data connection for " + pathName + ".");
-                    stor(pathName);
-                    sendResponse(226, "Transfer complete.");
+                    try {
+                        appe(pathName);
+                        sendResponse(226, "Transfer complete.");
+                    } catch (FtpQuotaLedger.QuotaExceededException e) {
+                        sendResponse(552, "Requested file action aborted. Exceeded storage allocation.");
+                    } catch (IOException e) {
+                        sendTransferError(e, 426, "Connection closed; transfer aborted.");
+                    }
                 } else {
                     sendResponse(450, "Requested action not taken.");
                 }
@@ -509,58 +2075,230 @@ public class FtpServerConnection implements Runnable {
     }
     
     /**
-     * FtpServerConnection constructor.
+     * Closes the connection as soon as it is not handling a request, so that
+     * transfers in progress can finish. Called when the server is draining.
      *
-     * @param  ftpHome      FTP home path on the server
-     * @param  connection   socket for FTP
-     * @throws IOException
+     * Like a timeout, this only ends the input of a waiting connection; the
+     * session thread then finishes any request it has just read, sends 421
+     * and closes the connection itself.
      */
-    public FtpServerConnection(String ftpHome, Socket connection) throws IOException {
-        this.ftpHome = new File(ftpHome).getCanonicalPath();
-        
-        this.connection = connection;
-        this.in = new BufferedReader(new InputStreamReader(connection.getInputStream()));
-        this.out = new BufferedOutputStream(connection.getOutputStream());
-        this.pout = new PrintStream(this.out);
-        
-        // Service ready for new user
-        sendResponse(220, "(my-ftpd 0.0.1)");
+    public void drain() {
+        isDraining = true;
+        if (isWaiting) {
+            try {
+                plainConnection.shutdownInput();
+            } catch (IOException e) {
+                abort();
+            }
+        }
     }
     
     /**
-     * Thread run method.
+     * Tells the client that the server is restarting, and closes the connection.
      */
-    public void run() {
-        String request;
-        while (!shouldStop) {
-            // Reads a request
-            try {
-                request = in.readLine();
-            } catch (IOException e) {
-                request = null;
+    private void closeForRestart() {
+        try {
+            sendResponse(421, "Service restarting, please reconnect.");
+            flushResponses();
+        } catch (IOException e) {
+        }
+        close();
+    }
+    
+    /**
+     * Checks the connection for timeouts. Runs on the timer thread.
+     *
+     * Rather than rescheduling on every request, the timeout is checked
+     * against the time of the last activity when it fires, and scheduled
+     * again for the remaining time.
+     *
+     * Nothing is written from here, as the timer thread must not block on a
+     * client that does not read. An idle connection gets end of stream on its
+     * input instead, so that the session thread sends 421 and closes it; if
+     * the session thread has not done so by the next check, the connection
+     * is reset.
+     */
+    private void checkTimeout() {
+        if (shouldStop)
+            return;
+        long idle = System.currentTimeMillis() - lastActivity;
+        if (isTimedOut) {
+            log("Idle timeout not handled, resetting connection");
+            abort();
+        } else if (isTransferring) {
+            // Accepts/reads time out by themselves; aborts stalled writes
+            Socket dataConnection = this.dataConnection;
+            if (idle >= dataTimeout && dataConnection != null) {
+                log("Data connection timed out");
+                closeQuietly(dataConnection);
             }
-            
-            // Handles the request and sends response
+            timeout = timer.schedule(timeoutTask, dataTimeout);
+        } else if (idle >= idleTimeout) {
+            log("Idle timeout");
+            isTimedOut = true;
             try {
-                if (request != null && !request.isEmpty()) {
-                    log(request);
-                    handleRequest(request);
-                }
+                plainConnection.shutdownInput();
             } catch (IOException e) {
-                System.err.println("FTP error: " + e.getMessage());
+                abort();
+                return;
             }
+            timeout = timer.schedule(timeoutTask, dataTimeout);
+        } else {
+            timeout = timer.schedule(timeoutTask, idleTimeout - idle);
+        }
+    }
+    
+    /**
+     * Resets the control connection without writing to it, which unblocks
+     * the session thread whatever it is doing.
+     */
+    private void abort() {
+        try {
+            plainConnection.setSoLinger(true, 0);
+        } catch (IOException e) {
+        }
+        closeQuietly(dataConnection);
+        closeQuietly(plainConnection);
+    }
+    
+    /**
+     * Task that checks the connection for timeouts.
+     */
+    private final Runnable timeoutTask = new Runnable() {
+        public void run() {
+            checkTimeout();
+        }
+    };
+    
+    /**
+     * Closes the connection and releases all its resources.
+     */
+    private void close() {
+        stop();
+        FtpTimerWheel.Timeout timeout = this.timeout;
+        if (timeout != null)
+            timeout.cancel();
+        closeQuietly(dataConnection);
+        closeQuietly(dataSocket);
+        closeQuietly(connection);
+        closePeers();
+    }
+    
+    /**
+     * Closes a socket or stream, ignoring errors.
+     *
+     * @param  closeable    socket or stream to close, or null
+     */
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable == null)
+            return;
+        try {
+            closeable.close();
+        } catch (IOException e) {
         }
     }
     
     /**
-     * Thread finalize method.
+     * FtpServerConnection constructor.
+     *
+     * @param  config       server settings
+     * @param  timer        timer for timeouts
+     * @param  connection   socket for FTP
+     * @throws IOException
+     */
+    public FtpServerConnection(FtpServerConfig config, FtpTimerWheel timer, Socket connection) throws IOException {
+        this.ftpHome = new File(config.getFtpHome()).getCanonicalPath();
+        this.userStore = config.getUserStore();
+        this.tls = config.getTls();
+        this.implicitTls = config.isImplicitTls();
+        this.timer = timer;
+        this.idleTimeout = config.getIdleTimeout();
+        this.dataTimeout = config.getDataTimeout();
+        this.chunkStore = config.getChunkStore();
+        this.quotaLedger = config.getQuotaLedger();
+        this.cluster = config.getCluster();
+        this.passiveAddress = config.getPassiveAddress();
+        
+        connection.setKeepAlive(true);
+        this.connection = this.plainConnection = connection;
+        this.in = new FtpRequestReader(connection.getInputStream());
+        this.out = new BufferedOutputStream(connection.getOutputStream());
+        this.pout = new PrintStream(this.out);
+    }
+    
+    /**
+     * Thread run method.
      */
-    protected void finalize() {
+    public void run() {
+        timeout = timer.schedule(timeoutTask, idleTimeout);
         try {
-            if (connection != null)
-                connection.close();
+            // Implicit FTPS protects both control and data connections from the start
+            if (implicitTls) {
+                startTls();
+                isPbszSet = isDataProtected = true;
+            }
+            
+            // Service ready for new user
+            sendResponse(220, "(my-ftpd 0.0.1)");
+            flushResponses();
         } catch (IOException e) {
             System.err.println("FTP error: " + e.getMessage());
+            stop();
+        }
+        
+        String request;
+        try {
+            while (!shouldStop) {
+                // Reads a request; stops on end of stream or a closed connection
+                try {
+                    isWaiting = !in.hasPendingRequest();
+                    if (isWaiting && isDraining)
+                        break;
+                    request = in.readLine();
+                } catch (IOException e) {
+                    request = null;
+                } finally {
+                    isWaiting = false;
+                }
+                if (request == null)
+                    break;
+                lastActivity = System.currentTimeMillis();
+                
+                // Handles the request and sends response
+                try {
+                    if (!request.isEmpty()) {
+                        log(request.startsWith("PASS ") ? "PASS ****" : request);
+                        handleRequest(request);
+                    }
+                } catch (IOException e) {
+                    System.err.println("FTP error: " + e.getMessage());
+                } catch (RuntimeException e) {
+                    // A bug in one request must not end the session without a reply
+                    log("Internal error: " + e);
+                    try {
+                        sendResponse(451, "Requested action aborted. Local error in processing.");
+                    } catch (IOException e2) {
+                    }
+                }
+                
+                // Flushes responses only when no more pipelined requests are pending
+                try {
+                    if (shouldStop || !in.hasPendingRequest())
+                        flushResponses();
+                } catch (IOException e) {
+                    System.err.println("FTP error: " + e.getMessage());
+                }
+            }
+            if (isTimedOut && !shouldStop) {
+                try {
+                    sendResponse(421, "Timeout.");
+                    flushResponses();
+                } catch (IOException e) {
+                }
+            } else if (isDraining && !shouldStop)
+                closeForRestart();
+        } finally {
+            close();
         }
     }
 }
@@ -0,0 +1,135 @@
+import java.util.*;
+
+/**
+ * FtpTimerWheel class.
+ *
+ * A hashed timer wheel (Varghese & Lauck) that runs timeouts of all
+ * connections on a single thread. Scheduling and cancelling are O(1);
+ * timeouts fire with a precision of one tick.
+ *
+ * @author  Mort Yao <mort.yao@gmail.com>
+ *
+ * @see     FtpServerConnection
+ */
+public class FtpTimerWheel {
+    /**
+     * A scheduled timeout.
+     */
+    public class Timeout {
+        private final Runnable task;
+        private long rounds;
+        private int slot;
+        private boolean isCancelled = false;
+        
+        private Timeout(Runnable task) {
+            this.task = task;
+        }
+        
+        /**
+         * Cancels the timeout. Does nothing if it has already fired.
+         */
+        public void cancel() {
+            synchronized (FtpTimerWheel.this) {
+                if (!isCancelled) {
+                    isCancelled = true;
+                    wheel[slot].remove(this);
+                }
+            }
+        }
+    }
+    
+    /**
+     * Duration of a tick in milliseconds.
+     */
+    private final long tickMillis;
+    
+    /**
+     * Slots of the wheel, each holding the timeouts hashed to it.
+     */
+    private final Set<Timeout>[] wheel;
+    
+    /**
+     * Index of the slot for the current tick.
+     */
+    private int cursor = 0;
+    
+    /**
+     * FtpTimerWheel constructor. Starts the timer thread.
+     *
+     * @param  tickMillis   duration of a tick in milliseconds
+     * @param  slots        number of slots of the wheel
+     */
+    @SuppressWarnings("unchecked")
+    public FtpTimerWheel(long tickMillis, int slots) {
+        this.tickMillis = tickMillis;
+        this.wheel = (Set<Timeout>[]) new Set<?>[slots];
+        for (int i = 0; i < slots; i++)
+            wheel[i] = new HashSet<Timeout>();
+        
+        Thread thread = new Thread(new Runnable() {
+            public void run() {
+                tickLoop();
+            }
+        }, "my-ftpd-timer");
+        thread.setDaemon(true);
+        thread.start();
+    }
+    
+    /**
+     * Schedules a task to run after a delay on the timer thread. The task
+     * must not block.
+     *
+     * @param  task         task to run
+     * @param  delayMillis  delay in milliseconds
+     * @return              timeout, which can be cancelled
+     */
+    public synchronized Timeout schedule(Runnable task, long delayMillis) {
+        long ticks = Math.max(1, (delayMillis + tickMillis - 1) / tickMillis);
+        Timeout timeout = new Timeout(task);
+        timeout.rounds = (ticks - 1) / wheel.length;
+        timeout.slot = (int) ((cursor + ticks) % wheel.length);
+        wheel[timeout.slot].add(timeout);
+        return timeout;
+    }
+    
+    /**
+     * Advances the wheel every tick and runs the expired timeouts.
+     */
+    private void tickLoop() {
+        long deadline = System.currentTimeMillis();
+        while (true) {
+            deadline += tickMillis;
+            long sleep = deadline - System.currentTimeMillis();
+            if (sleep > 0) {
+                try {
+                    Thread.sleep(sleep);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+            
+            List<Timeout> expired = new ArrayList<Timeout>();
+            synchronized (this) {
+                cursor = (cursor + 1) % wheel.length;
+                Iterator<Timeout> it = wheel[cursor].iterator();
+                while (it.hasNext()) {
+                    Timeout timeout = it.next();
+                    if (timeout.rounds > 0) {
+                        timeout.rounds--;
+                    } else {
+                        it.remove();
+                        timeout.isCancelled = true;
+                        expired.add(timeout);
+                    }
+                }
+            }
+            for (Timeout timeout : expired) {
+                try {
+                    timeout.task.run();
+                } catch (RuntimeException e) {
+                    System.err.println("Timer error: " + e);
+                }
+            }
+        }
+    }
+}
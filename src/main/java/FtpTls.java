@@ -0,0 +1,159 @@
+import java.io.*;
+import java.net.*;
+import java.security.*;
+import javax.net.ssl.*;
+
+/**
+ * FtpTls class.
+ *
+ * Creates the server-side TLS context for FTPS (RFC 4217) and layers TLS
+ * over control and data sockets. All sockets share one context, so that
+ * TLS sessions negotiated on the control connection can be resumed by
+ * the data connections instead of doing a full handshake per transfer.
+ *
+ * The same context secures connections to other nodes of a cluster. As a
+ * client, it only trusts the certificates in its own key store, so all
+ * nodes are expected to share one certificate.
+ *
+ * The context is not created at startup, since initializing the security
+ * providers is a large part of it, but by load() or the first connection
+ * that asks for TLS. If it cannot be created, the error is kept and
+ * reported to every connection instead of reading the key store again.
+ *
+ * @author  Mort Yao <mort.yao@gmail.com>
+ *
+ * @see     FtpServerConnection
+ */
+public class FtpTls {
+    /**
+     * Maximum number of cached TLS sessions, and their lifetime in seconds.
+     */
+    private static final int SESSION_CACHE_SIZE = 10000;
+    private static final int SESSION_TIMEOUT = 24 * 60 * 60;
+    
+    /**
+     * Key store file and password.
+     */
+    private final File keyStore;
+    private final char[] password;
+    
+    /**
+     * TLS context, or null if not created yet.
+     */
+    private volatile SSLContext context = null;
+    
+    /**
+     * Error of creating the TLS context, or null if none.
+     */
+    private IOException failure = null;
+    
+    /**
+     * FtpTls constructor.
+     *
+     * @param  keyStore     key store file (JKS or PKCS12) with the server certificate
+     * @param  password     key store password
+     * @throws IOException  if the key store cannot be read
+     */
+    public FtpTls(File keyStore, char[] password) throws IOException {
+        if (!keyStore.canRead())
+            throw new FileNotFoundException("Cannot read key store " + keyStore);
+        this.keyStore = keyStore;
+        this.password = password;
+    }
+    
+    /**
+     * Creates the TLS context now rather than on first use, so that errors
+     * in the key store or password are found at once.
+     *
+     * @throws IOException  if the key store cannot be loaded
+     */
+    public void load() throws IOException {
+        getContext();
+    }
+    
+    /**
+     * Returns the TLS context, creating it on first use.
+     *
+     * @return              TLS context
+     * @throws IOException  if the context cannot be created, now or before
+     */
+    private SSLContext getContext() throws IOException {
+        SSLContext context = this.context;
+        if (context != null)
+            return context;
+        synchronized (this) {
+            if (this.context == null && failure == null) {
+                try {
+                    this.context = createContext();
+                } catch (IOException e) {
+                    failure = e;
+                }
+            }
+            if (failure != null)
+                throw new IOException(failure.getMessage(), failure);
+            return this.context;
+        }
+    }
+    
+    /**
+     * Creates the TLS context from the key store.
+     *
+     * @return              TLS context
+     * @throws IOException
+     */
+    private SSLContext createContext() throws IOException {
+        SSLContext context;
+        try {
+            KeyStore ks = KeyStore.getInstance(keyStore.getName().endsWith(".jks") ? "JKS" : "PKCS12");
+            InputStream is = new FileInputStream(keyStore);
+            try {
+                ks.load(is, password);
+            } finally {
+                is.close();
+            }
+            KeyManagerFactory kmf = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+            kmf.init(ks, password);
+            TrustManagerFactory tmf = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+            tmf.init(ks);
+            context = SSLContext.getInstance("TLS");
+            context.init(kmf.getKeyManagers(), tmf.getTrustManagers(), null);
+        } catch (GeneralSecurityException e) {
+            throw new IOException("TLS setup failed: " + e.getMessage(), e);
+        }
+        SSLSessionContext sessions = context.getServerSessionContext();
+        sessions.setSessionCacheSize(SESSION_CACHE_SIZE);
+        sessions.setSessionTimeout(SESSION_TIMEOUT);
+        return context;
+    }
+    
+    /**
+     * Layers server-side TLS over a connected socket and does the handshake.
+     *
+     * @param  socket       connected socket
+     * @return              TLS socket, which closes the given socket on close
+     * @throws IOException
+     */
+    public SSLSocket wrap(Socket socket) throws IOException {
+        SSLSocket sslSocket = (SSLSocket) getContext().getSocketFactory().createSocket(
+            socket, socket.getInetAddress().getHostAddress(), socket.getPort(), true);
+        sslSocket.setUseClientMode(false);
+        sslSocket.startHandshake();
+        return sslSocket;
+    }
+    
+    /**
+     * Layers client-side TLS over a socket connected to another node. The
+     * handshake is done on first use, as the node only starts it on a data
+     * connection once it handles the transfer request.
+     *
+     * @param  socket       connected socket
+     * @return              TLS socket, which closes the given socket on close
+     * @throws IOException
+     */
+    public SSLSocket wrapClient(Socket socket) throws IOException {
+        SSLSocket sslSocket = (SSLSocket) getContext().getSocketFactory().createSocket(
+            socket, socket.getInetAddress().getHostAddress(), socket.getPort(), true);
+        sslSocket.setUseClientMode(true);
+        return sslSocket;
+    }
+}
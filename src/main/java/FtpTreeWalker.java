@@ -0,0 +1,423 @@
+import java.io.*;
+import java.nio.file.*;
+import java.nio.file.attribute.*;
+import java.text.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * FtpTreeWalker class.
+ *
+ * Recursive operations on directory trees, done in-process and in parallel:
+ * each directory is read by its own fork/join task. Listings are written
+ * directory by directory in tree order as soon as each is read, so they
+ * are never put together in memory. Symbolic links are never followed.
+ *
+ * @author  Mort Yao <mort.yao@gmail.com>
+ *
+ * @see     FtpServerConnection
+ */
+public class FtpTreeWalker {
+    /**
+     * Pool for tree tasks, shared by all connections.
+     */
+    private static final ForkJoinPool pool = new ForkJoinPool();
+    
+    /**
+     * Listing formats.
+     */
+    public enum Format {
+        /**
+         * "ls -l" style, as in LIST.
+         */
+        LIST,
+        
+        /**
+         * Machine-readable facts, as in MLSD (RFC 3659).
+         */
+        MLSD
+    }
+    
+    /**
+     * Decides which entries may be listed, e.g. by the permissions of the
+     * user. An entry not accepted is neither listed nor descended into.
+     */
+    public interface Filter {
+        /**
+         * Returns true if an entry may be listed.
+         *
+         * @param  pathName     pathname of the entry as seen by the client
+         * @return              true if the entry may be listed
+         */
+        boolean accept(String pathName);
+    }
+    
+    /**
+     * Lists a directory, and optionally all its subdirectories.
+     *
+     * For LIST format, a recursive listing prints each directory as a "NAME:"
+     * header followed by its entries and a blank line, like "ls -lR". For
+     * MLSD format, each entry is printed as facts followed by its pathname
+     * relative to the listed directory.
+     *
+     * @param  dir          directory to list
+     * @param  displayName  pathname of the directory as seen by the client
+     * @param  format       listing format
+     * @param  recursive    true to list subdirectories too
+     * @param  filter       entries that may be listed, or null for all
+     * @param  chunkStore   chunk store to read the size of manifests from,
+     *                      or null if deduplication is not enabled
+     * @param  out          where to write the listing
+     * @throws IOException
+     */
+    public static void list(Path dir, String displayName, Format format, boolean recursive,
+                            Filter filter, FtpChunkStore chunkStore, Writer out) throws IOException {
+        ListTask root = new ListTask(dir, displayName, format == Format.LIST ? displayName : "",
+                                     format, recursive, filter, chunkStore);
+        pool.execute(root);
+        write(root, out);
+        out.flush();
+    }
+    
+    /**
+     * Writes the listing of a directory once it is read, then the listings
+     * of its subdirectories in order. The subdirectories are only read once
+     * the writer gets to their parent, so that at most the directories along
+     * the current path and their siblings are held in memory.
+     *
+     * @param  task         task reading the directory, already started
+     * @param  out          where to write the listing
+     * @throws IOException
+     */
+    private static void write(ListTask task, Writer out) throws IOException {
+        String own;
+        try {
+            own = task.get();
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException();
+        } catch (ExecutionException e) {
+            throw unwrap(e);
+        }
+        for (ListTask subtask : task.getSubtasks())
+            pool.execute(subtask);
+        out.write(own);
+        for (ListTask subtask : task.getSubtasks())
+            write(subtask, out);
+    }
+    
+    /**
+     * Deletes a directory and everything in it.
+     *
+     * @param  dir          directory to delete
+     * @param  chunkStore   chunk store to release deleted manifests from,
+     *                      or null if deduplication is not enabled
+     * @throws IOException
+     */
+    public static void delete(Path dir, FtpChunkStore chunkStore) throws IOException {
+        try {
+            pool.submit(new DeleteTask(dir, chunkStore)).get();
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException();
+        } catch (ExecutionException e) {
+            throw unwrap(e);
+        }
+    }
+    
+    /**
+     * Task that reads the entries of a directory, and prepares (but does not
+     * run) the tasks for its subdirectories.
+     */
+    private static class ListTask extends RecursiveTask<String> {
+        private static final long serialVersionUID = 1L;
+        
+        private final Path dir;
+        private final String pathName;
+        private final String name;
+        private final Format format;
+        private final boolean recursive;
+        private final Filter filter;
+        private final FtpChunkStore chunkStore;
+        private List<ListTask> subtasks = null;
+        
+        ListTask(Path dir, String pathName, String name, Format format, boolean recursive, Filter filter,
+                 FtpChunkStore chunkStore) {
+            this.dir = dir;
+            this.pathName = pathName;
+            this.name = name;
+            this.format = format;
+            this.recursive = recursive;
+            this.filter = filter;
+            this.chunkStore = chunkStore;
+        }
+        
+        List<ListTask> getSubtasks() {
+            return subtasks;
+        }
+        
+        protected String compute() {
+            try {
+                return readOwn();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        
+        /**
+         * Reads this directory's own entries.
+         */
+        private String readOwn() throws IOException {
+            List<Path> entries = new ArrayList<Path>();
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+                for (Path entry : stream)
+                    entries.add(entry);
+            } catch (AccessDeniedException e) {
+                // Unreadable directories are listed as empty
+            }
+            Collections.sort(entries);
+            
+            StringBuilder sb = new StringBuilder();
+            subtasks = new ArrayList<ListTask>();
+            if (format == Format.LIST && recursive)
+                sb.append(name).append(":\r\n");
+            for (Path entry : entries) {
+                String entryName = entry.getFileName().toString();
+                String childName = name.endsWith("/") ? name + entryName
+                    : name.isEmpty() ? entryName : name + "/" + entryName;
+                String childPathName = pathName.endsWith("/") ? pathName + entryName : pathName + "/" + entryName;
+                if (filter != null && !filter.accept(childPathName))
+                    continue;
+                BasicFileAttributes attrs;
+                try {
+                    attrs = Files.readAttributes(entry, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+                } catch (IOException e) {
+                    continue;
+                }
+                if (format == Format.LIST)
+                    sb.append(formatList(entry, entryName, attrs, chunkStore)).append("\r\n");
+                else
+                    sb.append(formatFacts(entry, attrs, chunkStore)).append(' ').append(childName).append("\r\n");
+                if (attrs.isDirectory() && recursive)
+                    subtasks.add(new ListTask(entry, childPathName, childName, format, true, filter, chunkStore));
+            }
+            if (format == Format.LIST && recursive)
+                sb.append("\r\n");
+            return sb.toString();
+        }
+    }
+    
+    /**
+     * Task that deletes a directory tree.
+     */
+    private static class DeleteTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        
+        private final Path dir;
+        private final FtpChunkStore chunkStore;
+        
+        DeleteTask(Path dir, FtpChunkStore chunkStore) {
+            this.dir = dir;
+            this.chunkStore = chunkStore;
+        }
+        
+        protected void compute() {
+            try {
+                List<DeleteTask> subtasks = new ArrayList<DeleteTask>();
+                try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+                    for (Path entry : stream) {
+                        if (Files.isDirectory(entry, LinkOption.NOFOLLOW_LINKS))
+                            subtasks.add(new DeleteTask(entry, chunkStore));
+                        else if (chunkStore == null || Files.isSymbolicLink(entry))
+                            Files.delete(entry);
+                        else if (!chunkStore.delete(entry.toFile()))
+                            throw new IOException("Cannot delete " + entry);
+                    }
+                }
+                invokeAll(subtasks);
+                Files.delete(dir);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+    
+    /**
+     * Formats a single entry like a line of "ls -l".
+     *
+     * @param  path         path of the entry
+     * @param  chunkStore   chunk store to read the size of manifests from,
+     *                      or null if deduplication is not enabled
+     * @return              formatted line
+     * @throws IOException
+     */
+    public static String formatList(Path path, FtpChunkStore chunkStore) throws IOException {
+        return formatList(path, path.getFileName().toString(),
+                          Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS),
+                          chunkStore);
+    }
+    
+    /**
+     * Formats an entry like a line of "ls -l".
+     *
+     * @param  path         path of the entry
+     * @param  name         name of the entry
+     * @param  attrs        basic attributes of the entry
+     * @param  chunkStore   chunk store, or null
+     * @return              formatted line
+     */
+    static String formatList(Path path, String name, BasicFileAttributes attrs, FtpChunkStore chunkStore) {
+        String perms = "---------", owner = "ftp", group = "ftp";
+        try {
+            PosixFileAttributes posix = Files.readAttributes(path, PosixFileAttributes.class,
+                                                             LinkOption.NOFOLLOW_LINKS);
+            perms = PosixFilePermissions.toString(posix.permissions());
+            owner = posix.owner().getName();
+            group = posix.group().getName();
+        } catch (UnsupportedOperationException | IOException e) {
+        }
+        char type = attrs.isDirectory() ? 'd' : attrs.isSymbolicLink() ? 'l' : '-';
+        
+        long time = attrs.lastModifiedTime().toMillis();
+        boolean isRecent = Math.abs(System.currentTimeMillis() - time) < 180L * 24 * 60 * 60 * 1000;
+        String date = new SimpleDateFormat(isRecent ? "MMM dd HH:mm" : "MMM dd  yyyy", Locale.US)
+            .format(new Date(time));
+        
+        return String.format("%c%s 1 %-8s %-8s %8d %s %s", type, perms, owner, group,
+                             getSize(path, attrs, chunkStore), date, name);
+    }
+    
+    /**
+     * Formats MLST facts of an entry.
+     *
+     * @param  path         path of the entry
+     * @param  chunkStore   chunk store to read the size of manifests from,
+     *                      or null if deduplication is not enabled
+     * @return              facts, ending with ';'
+     * @throws IOException
+     */
+    public static String formatFacts(Path path, FtpChunkStore chunkStore) throws IOException {
+        return formatFacts(path, Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS),
+                           chunkStore);
+    }
+    
+    /**
+     * Formats MLSD facts of an entry.
+     *
+     * @param  path         path of the entry
+     * @param  attrs        basic attributes of the entry
+     * @param  chunkStore   chunk store, or null
+     * @return              facts, ending with ';'
+     */
+    static String formatFacts(Path path, BasicFileAttributes attrs, FtpChunkStore chunkStore) {
+        SimpleDateFormat modify = new SimpleDateFormat("yyyyMMddHHmmss");
+        modify.setTimeZone(TimeZone.getTimeZone("GMT"));
+        StringBuilder sb = new StringBuilder();
+        sb.append("type=").append(attrs.isDirectory() ? "dir" : attrs.isSymbolicLink() ? "OS.unix=symlink" : "file");
+        sb.append(";size=").append(getSize(path, attrs, chunkStore));
+        sb.append(";modify=").append(modify.format(new Date(attrs.lastModifiedTime().toMillis())));
+        sb.append(";perm=");
+        if (attrs.isDirectory())
+            sb.append(Files.isWritable(path) ? "elcdmp" : "el");
+        else
+            sb.append(Files.isWritable(path) ? "radfw" : "r");
+        return sb.append(';').toString();
+    }
+    
+    /**
+     * Returns a fact of MLST facts.
+     *
+     * @param  facts        facts, as formatted by formatFacts()
+     * @param  name         fact name, e.g. "type"
+     * @return              fact value, or null if there is no such fact
+     */
+    public static String getFact(String facts, String name) {
+        for (String fact : facts.split(";")) {
+            int equals = fact.indexOf('=');
+            if (equals > 0 && fact.substring(0, equals).equalsIgnoreCase(name))
+                return fact.substring(equals + 1);
+        }
+        return null;
+    }
+    
+    /**
+     * Formats an entry like a line of "ls -l" from its MLST facts, for
+     * entries of other nodes. Permissions are derived from the perm fact,
+     * and the owner is not known.
+     *
+     * @param  facts        facts, as formatted by formatFacts()
+     * @param  name         name of the entry
+     * @return              formatted line
+     */
+    public static String formatList(String facts, String name) {
+        String type = getFact(facts, "type"), perm = getFact(facts, "perm"), size = getFact(facts, "size");
+        boolean isDirectory = "dir".equals(type);
+        boolean isWritable = perm != null && perm.contains(isDirectory ? "c" : "w");
+        String perms = (isWritable ? "rw" : "r-") + (isDirectory ? "xr-xr-x" : "-r--r--");
+        
+        String modified = getFact(facts, "modify");
+        long time = 0;
+        if (modified != null) {
+            SimpleDateFormat modify = new SimpleDateFormat("yyyyMMddHHmmss");
+            modify.setTimeZone(TimeZone.getTimeZone("GMT"));
+            try {
+                time = modify.parse(modified).getTime();
+            } catch (ParseException e) {
+            }
+        }
+        boolean isRecent = Math.abs(System.currentTimeMillis() - time) < 180L * 24 * 60 * 60 * 1000;
+        String date = new SimpleDateFormat(isRecent ? "MMM dd HH:mm" : "MMM dd  yyyy", Locale.US)
+            .format(new Date(time));
+        
+        return String.format("%c%s 1 %-8s %-8s %8s %s %s", isDirectory ? 'd' : "file".equals(type) ? '-' : 'l',
+                             perms, "ftp", "ftp", size == null ? "0" : size, date, name);
+    }
+    
+    /**
+     * Returns the size of an entry as seen by the client, i.e. the size of
+     * the data rather than of the manifest for deduplicated files.
+     *
+     * @param  path         path of the entry
+     * @param  attrs        basic attributes of the entry
+     * @param  chunkStore   chunk store, or null
+     * @return              size in bytes
+     */
+    private static long getSize(Path path, BasicFileAttributes attrs, FtpChunkStore chunkStore) {
+        if (chunkStore == null || !attrs.isRegularFile())
+            return attrs.size();
+        try {
+            File file = path.toFile();
+            return chunkStore.isManifest(file) ? chunkStore.getSize(file) : attrs.size();
+        } catch (IOException | NumberFormatException e) {
+            return attrs.size();
+        }
+    }
+    
+    /**
+     * Returns the IOException that caused a task to fail.
+     *
+     * @param  e            task failure
+     * @return              cause as an IOException
+     */
+    private static IOException unwrap(ExecutionException e) {
+        Throwable cause = e.getCause();
+        if (cause instanceof UncheckedIOException)
+            return ((UncheckedIOException) cause).getIOException();
+        if (cause instanceof IOException)
+            return (IOException) cause;
+        return new IOException(cause);
+    }
+    
+    /**
+     * Unchecked wrapper of an IOException thrown inside a task.
+     */
+    private static class UncheckedIOException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+        
+        UncheckedIOException(IOException cause) {
+            super(cause);
+        }
+        
+        IOException getIOException() {
+            return (IOException) getCause();
+        }
+    }
+}
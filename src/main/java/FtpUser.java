@@ -0,0 +1,158 @@
+import java.util.*;
+
+/**
+ * FtpUser class.
+ *
+ * A user account with its home dir and permission map. Permissions are
+ * strings of access flags ('r' for read, 'w' for write); the permission
+ * of a pathname is given by the longest matching path prefix in the map,
+ * or the default permissions if no prefix matches.
+ *
+ * @author  Mort Yao <mort.yao@gmail.com>
+ *
+ * @see     FtpUserStore
+ */
+public class FtpUser {
+    /**
+     * User name.
+     */
+    private final String name;
+    
+    /**
+     * Home path on the server, which is the root dir seen by the user.
+     */
+    private final String home;
+    
+    /**
+     * Default permissions.
+     */
+    private final String defaultPermissions;
+    
+    /**
+     * Permissions of pathnames (relative to the home dir), sorted by length.
+     */
+    private final TreeMap<String, String> permissions;
+    
+    /**
+     * FtpUser constructor.
+     *
+     * @param  name                 user name
+     * @param  home                 home path on the server
+     * @param  defaultPermissions   default permissions
+     * @param  permissions          permissions of pathnames relative to home
+     */
+    public FtpUser(String name, String home, String defaultPermissions,
+                   Map<String, String> permissions) {
+        this.name = name;
+        this.home = home;
+        this.defaultPermissions = defaultPermissions;
+        this.permissions = new TreeMap<String, String>(permissions);
+    }
+    
+    /**
+     * Returns the user name.
+     *
+     * @return              user name
+     */
+    public String getName() {
+        return name;
+    }
+    
+    /**
+     * Returns the home path on the server.
+     *
+     * @return              home path
+     */
+    public String getHome() {
+        return home;
+    }
+    
+    /**
+     * Returns true if the user has a given access to a pathname.
+     *
+     * @param  pathName     pathname relative to the home dir, starting with '/'
+     * @param  access       access flag ('r' or 'w')
+     * @return              true if the access is permitted
+     */
+    public boolean hasPermission(String pathName, char access) {
+        String perms = defaultPermissions;
+        int matched = -1;
+        for (Map.Entry<String, String> entry : permissions.entrySet()) {
+            String prefix = entry.getKey();
+            if (prefix.length() > matched && isPrefix(prefix, pathName)) {
+                perms = entry.getValue();
+                matched = prefix.length();
+            }
+        }
+        return perms.indexOf(access) >= 0;
+    }
+    
+    /**
+     * Returns true if the user has a given access to a pathname and to
+     * everything under it, i.e. no permission under it denies the access.
+     *
+     * @param  pathName     pathname relative to the home dir, starting with '/'
+     * @param  access       access flag ('r' or 'w')
+     * @return              true if the access is permitted on the whole tree
+     */
+    public boolean hasTreePermission(String pathName, char access) {
+        if (!hasPermission(pathName, access))
+            return false;
+        for (Map.Entry<String, String> entry : permissions.entrySet())
+            if (isPrefix(pathName, entry.getKey()) && entry.getValue().indexOf(access) < 0)
+                return false;
+        return true;
+    }
+    
+    /**
+     * Returns true if a path is a prefix of another path, by path components.
+     *
+     * @param  prefix       path prefix
+     * @param  pathName     pathname
+     * @return              true if prefix is pathName or one of its ancestors
+     */
+    private static boolean isPrefix(String prefix, String pathName) {
+        if (prefix.equals("/") || prefix.equals(pathName))
+            return true;
+        return pathName.startsWith(prefix.endsWith("/") ? prefix : prefix + "/");
+    }
+    
+    /**
+     * Parses a permission spec of the form "PERMS[,PATH=PERMS...]".
+     *
+     * @param  name         user name
+     * @param  home         home path on the server
+     * @param  spec         permission spec
+     * @return              user
+     * @throws IllegalArgumentException
+     *                      if the spec is malformed
+     */
+    public static FtpUser parse(String name, String home, String spec) {
+        String items[] = spec.split(",");
+        Map<String, String> permissions = new HashMap<String, String>();
+        for (int i = 1; i < items.length; i++) {
+            int eq = items[i].indexOf('=');
+            if (eq < 0)
+                throw new IllegalArgumentException("bad permission item: " + items[i]);
+            String path = items[i].substring(0, eq).trim();
+            if (!path.startsWith("/"))
+                path = "/" + path;
+            permissions.put(path, checkPermissions(items[i].substring(eq + 1).trim()));
+        }
+        return new FtpUser(name, home, checkPermissions(items[0].trim()), permissions);
+    }
+    
+    /**
+     * Checks that permissions only contain known flags.
+     *
+     * @param  perms        permissions
+     * @return              the same permissions
+     * @throws IllegalArgumentException
+     *                      if a flag is unknown
+     */
+    private static String checkPermissions(String perms) {
+        if (!perms.matches("[rwa]*"))
+            throw new IllegalArgumentException("bad permissions: " + perms);
+        return perms;
+    }
+}
@@ -0,0 +1,34 @@
+import java.io.*;
+
+/**
+ * FtpUserStore interface.
+ *
+ * A source of user accounts. Like a directory service (e.g. LDAP), a store
+ * looks users up by name and verifies credentials by binding as the user,
+ * so implementations need not expose password hashes.
+ *
+ * @author  Mort Yao <mort.yao@gmail.com>
+ *
+ * @see     FtpFileUserStore
+ * @see     FtpCachingUserStore
+ */
+public interface FtpUserStore {
+    /**
+     * Looks up a user by name.
+     *
+     * @param  name         user name
+     * @return              user, or null if no such user
+     * @throws IOException
+     */
+    FtpUser lookup(String name) throws IOException;
+    
+    /**
+     * Verifies the password of a user.
+     *
+     * @param  name         user name
+     * @param  password     password
+     * @return              true if the password is correct
+     * @throws IOException
+     */
+    boolean bind(String name, String password) throws IOException;
+}